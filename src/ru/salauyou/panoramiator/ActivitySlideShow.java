@@ -135,6 +135,7 @@ public class ActivitySlideShow extends Activity implements SlideShowSwipe.OnStat
 		}
 
 		// attach bitmap container and start slide show demonstration
+		Controller.getInstance().getImageContainer().setSlideShowPeriod(slideShowPeriod);
 		slideShow.setBitmapContainer(Controller.getInstance().getImageContainer())
 			.setSlideShowPeriod(slideShowPeriod)
 			.setSlideShowTransition(500)
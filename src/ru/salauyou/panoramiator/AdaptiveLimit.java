@@ -0,0 +1,174 @@
+package ru.salauyou.panoramiator;
+
+/**
+ * AdaptiveLimit adjusts number of concurrent network transfers by AIMD rule. Transfers are 
+ * measured in rounds of as many completions as the limit is. After each round, if transfer time per 
+ * kilobyte grew more than twice over the best one observed, or a transfer failed, the limit is 
+ * decreased multiplicatively. If the previous round increased the limit but aggregate throughput 
+ * didn't grow, the increase is taken back. Otherwise, if transfers were waiting and either aggregate 
+ * throughput grew or transfer time stayed near the best one, the limit is increased by one.
+ */
+public class AdaptiveLimit {
+
+	/**
+	 * Snapshot of limit state
+	 */
+	static public class State {
+		final public int limit;
+		final public long throughput;			// bytes/s, aggregate over the last round
+		final public long latency;				// ms, average transfer time over the last round
+		final public double timePerKb;			// ms, average over the last round
+		final public double timePerKbMin;		// ms, best observed
+		final public long increases;
+		final public long decreases;
+		
+		State(int limit, long throughput, long latency, double timePerKb, double timePerKbMin, long increases, long decreases){
+			this.limit = limit;
+			this.throughput = throughput;
+			this.latency = latency;
+			this.timePerKb = timePerKb;
+			this.timePerKbMin = timePerKbMin;
+			this.increases = increases;
+			this.decreases = decreases;
+		}
+		
+		@Override
+		public String toString(){
+			return "limit " + limit + ", throughput " + throughput + " B/s, latency " + latency + " ms, " 
+					+ String.format("%.2f", timePerKb) + " (min " + String.format("%.2f", timePerKbMin) + ") ms/KB, +" 
+					+ increases + "/-" + decreases;
+		}
+	}
+	
+	static private final double DECREASE_FACTOR = 0.75;
+	static private final double CONGESTION_RATIO = 2.0;		// time per KB over the best one signalling congestion
+	static private final double IDLE_RATIO = 1.2;			// time per KB over the best one still considered not loaded
+	static private final double THROUGHPUT_GAIN = 1.05;		// throughput growth worth one more transfer
+	static private final double BEST_DECAY = 1.005;			// per round, lets the best time follow changes of network
+	
+	final private int limitMin, limitMax;
+	private int limit;
+	
+	// current round
+	private long roundStart = 0;
+	private int roundCount = 0, roundSucceeded = 0;
+	private long roundBytes = 0, roundTime = 0;
+	private boolean roundFailed = false, roundDemand = false;
+	
+	// results of the last round
+	private long throughput = 0, latency = 0;
+	private double timePerKb = 0, timePerKbMin = Double.MAX_VALUE;
+	private long increases = 0, decreases = 0;
+	private boolean increasedLast = false;
+	
+	
+	/**
+	 * Create limit
+	 * 
+	 * @param initial
+	 * @param min
+	 * @param max
+	 */
+	public AdaptiveLimit(int initial, int min, int max){
+		if (min < 1 || max < min || initial < min || initial > max)
+			throw new IllegalArgumentException("Limits must satisfy 1 <= min <= initial <= max");
+		this.limit = initial;
+		this.limitMin = min;
+		this.limitMax = max;
+	}
+	
+	
+	/**
+	 * Get current limit
+	 * 
+	 * @return
+	 */
+	public synchronized int getLimit(){
+		return limit;
+	}
+	
+	
+	/**
+	 * Get snapshot of the state
+	 * 
+	 * @return
+	 */
+	public synchronized State getState(){
+		return new State(limit, throughput, latency, timePerKb, 
+				timePerKbMin == Double.MAX_VALUE ? 0 : timePerKbMin, increases, decreases);
+	}
+	
+	
+	/**
+	 * Register completed transfer
+	 * 
+	 * @param bytes		bytes transferred
+	 * @param time		ns spent on transfer
+	 * @param demand	true if other transfers are waiting for the limit
+	 * @return	true if the limit was changed
+	 */
+	public synchronized boolean onSuccess(long bytes, long time, boolean demand){
+		startRound(time);
+		roundCount++;
+		roundSucceeded++;
+		roundBytes += bytes;
+		roundTime += time;
+		roundDemand |= demand;
+		return roundCount >= limit ? endRound() : false;
+	}
+	
+	
+	/**
+	 * Register failed transfer
+	 * 
+	 * @param time	ns spent before failure
+	 * @return	true if the limit was changed
+	 */
+	public synchronized boolean onFailure(long time){
+		startRound(time);
+		roundCount++;
+		roundFailed = true;
+		return roundCount >= limit ? endRound() : false;
+	}
+	
+	
+	private void startRound(long time){
+		if (roundCount == 0){
+			// the round includes the first transfer completed in it
+			roundStart = System.nanoTime() - time;
+		}
+	}
+	
+	
+	private boolean endRound(){
+		int limitOld = limit;
+		long elapsed = Math.max(1, System.nanoTime() - roundStart);
+		long throughputOld = throughput;
+		boolean congested = roundFailed;
+		if (roundSucceeded > 0 && roundBytes > 0){
+			throughput = roundBytes * 1000000000L / elapsed;
+			latency = roundTime / roundSucceeded / 1000000;
+			timePerKb = (roundTime / 1000000.0) / (roundBytes / 1024.0);
+			timePerKbMin = Math.min(timePerKbMin * BEST_DECAY, timePerKb);
+			congested |= timePerKb > timePerKbMin * CONGESTION_RATIO;
+		}
+		if (congested){
+			limit = Math.max(limitMin, (int)(limit * DECREASE_FACTOR));
+		} else if (increasedLast && throughput <= throughputOld * THROUGHPUT_GAIN){
+			// the last increase didn't pay off
+			limit = Math.max(limitMin, limit - 1);
+		} else if (roundDemand && (throughput > throughputOld * THROUGHPUT_GAIN || timePerKb <= timePerKbMin * IDLE_RATIO)){
+			limit = Math.min(limitMax, limit + 1);
+		}
+		increasedLast = limit > limitOld;
+		if (limit > limitOld){
+			increases++;
+		} else if (limit < limitOld){
+			decreases++;
+		}
+		roundCount = roundSucceeded = 0;
+		roundBytes = roundTime = 0;
+		roundFailed = roundDemand = false;
+		return limit != limitOld;
+	}
+}
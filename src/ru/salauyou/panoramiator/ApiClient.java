@@ -0,0 +1,176 @@
+package ru.salauyou.panoramiator;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+/**
+ * ApiClient is a long-lived HTTP client for Panoramio metadata API. It keeps connections alive
+ * and reuses them across requests, limiting quantity of connections per host. 
+ * Response entity must be consumed to return connection into the pool. Base URL of the API
+ * can be set to point the client at another server.
+ */
+public class ApiClient {
+
+	static public final String BASE_URL_DEFAULT = "http://www.panoramio.com/map/";
+	static public final int CONNECT_TIMEOUT_DEFAULT = 10000;	// ms
+	static public final int READ_TIMEOUT_DEFAULT = 15000;		// ms
+	static public final int MAX_CONNECTIONS_PER_HOST_DEFAULT = 8;
+	static private final int IDLE_TIMEOUT = 30;				// seconds, idle connections are closed after it
+	
+	final private String baseUrl;
+	final private DefaultHttpClient httpClient;
+	final private ThreadSafeClientConnManager connectionManager;
+	
+	final private AtomicLong connectionsOpened = new AtomicLong();
+	final private AtomicLong connectionsReused = new AtomicLong();
+	
+	
+	/**
+	 * Create client with default timeouts and connection limits
+	 */
+	public ApiClient(){
+		this(BASE_URL_DEFAULT);
+	}
+	
+	
+	/**
+	 * Create client of API at given URL with default timeouts and connection limits
+	 * 
+	 * @param baseUrl	URL that API method names are appended to, ending with '/'
+	 */
+	public ApiClient(String baseUrl){
+		this(baseUrl, CONNECT_TIMEOUT_DEFAULT, READ_TIMEOUT_DEFAULT, MAX_CONNECTIONS_PER_HOST_DEFAULT);
+	}
+	
+	
+	/**
+	 * Create client of API at default URL
+	 * 
+	 * @param connectTimeout		timeout of connection establishing, ms
+	 * @param readTimeout			timeout of waiting for data, ms
+	 * @param maxConnectionsPerHost	maximum quantity of simultaneous connections to one host
+	 */
+	public ApiClient(int connectTimeout, int readTimeout, int maxConnectionsPerHost){
+		this(BASE_URL_DEFAULT, connectTimeout, readTimeout, maxConnectionsPerHost);
+	}
+	
+	
+	/**
+	 * Create client
+	 * 
+	 * @param baseUrl				URL that API method names are appended to, ending with '/'
+	 * @param connectTimeout		timeout of connection establishing, ms
+	 * @param readTimeout			timeout of waiting for data, ms
+	 * @param maxConnectionsPerHost	maximum quantity of simultaneous connections to one host
+	 */
+	public ApiClient(String baseUrl, int connectTimeout, int readTimeout, int maxConnectionsPerHost){
+		this.baseUrl = baseUrl;
+		HttpParams params = new BasicHttpParams();
+		HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+		HttpConnectionParams.setSoTimeout(params, readTimeout);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		HttpProtocolParams.setUserAgent(params, "Android");
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerHost));
+		ConnManagerParams.setMaxTotalConnections(params, maxConnectionsPerHost * 2);
+		
+		SchemeRegistry schemes = new SchemeRegistry();
+		schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		
+		connectionManager = new ThreadSafeClientConnManager(params, schemes){
+			@Override
+			public ClientConnectionRequest requestConnection(HttpRoute route, Object state){
+				final ClientConnectionRequest request = super.requestConnection(route, state);
+				// wrap request to see whether leased connection is already open
+				return new ClientConnectionRequest(){
+					@Override
+					public ManagedClientConnection getConnection(long timeout, TimeUnit unit) 
+							throws InterruptedException, ConnectionPoolTimeoutException {
+						ManagedClientConnection connection = request.getConnection(timeout, unit);
+						if (connection.isOpen()){
+							connectionsReused.incrementAndGet();
+						} else {
+							connectionsOpened.incrementAndGet();
+						}
+						return connection;
+					}
+
+					@Override
+					public void abortRequest(){
+						request.abortRequest();
+					}
+				};
+			}
+		};
+		httpClient = new DefaultHttpClient(connectionManager, params);
+	}
+	
+	
+	/**
+	 * Get URL that API method names are appended to
+	 * 
+	 * @return
+	 */
+	public String getBaseUrl(){
+		return baseUrl;
+	}
+	
+	
+	/**
+	 * Execute request using pooled connection
+	 * 
+	 * @param request
+	 * @return	response, its entity must be consumed
+	 * @throws IOException
+	 */
+	public HttpResponse execute(HttpUriRequest request) throws IOException {
+		connectionManager.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.SECONDS);
+		return httpClient.execute(request);
+	}
+	
+	
+	/**
+	 * Get quantity of requests that were sent via newly opened connection
+	 * 
+	 * @return
+	 */
+	public long getConnectionsOpened(){
+		return connectionsOpened.get();
+	}
+	
+	
+	/**
+	 * Get quantity of requests that were sent via kept-alive connection
+	 * 
+	 * @return
+	 */
+	public long getConnectionsReused(){
+		return connectionsReused.get();
+	}
+	
+	
+	/**
+	 * Close all connections. Client cannot be used after that
+	 */
+	public void shutdown(){
+		connectionManager.shutdown();
+	}
+}
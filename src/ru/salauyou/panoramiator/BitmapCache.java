@@ -0,0 +1,343 @@
+package ru.salauyou.panoramiator;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * BitmapCache keeps track of decoded bitmaps of all images within a byte budget. When the budget 
+ * is exceeded, bitmaps of images farthest from slideshow cursor are evicted (least recently used first 
+ * among equally far), and their images are marked not ready, so they will be downloaded again when needed.
+ * Images with the same URL share one bitmap, which is passed to {@code BitmapPool} for reuse when it is
+ * evicted or released by all of them; the pool holds it back while it is pinned as displayed. 
+ * If window is set, bitmaps out of the window around cursor are evicted even within the budget, 
+ * as long as their encoded photos are kept in {@code CompressedCache}.
+ */
+public class BitmapCache {
+
+	/**
+	 * Position of slideshow cursor, used to choose bitmaps to evict
+	 */
+	public interface Cursor {
+		
+		/**
+		 * Get distance of the image from cursor position in either direction around the slideshow ring
+		 * 
+		 * @param image
+		 * @return	distance in images, 0 for image at cursor, {@code Integer.MAX_VALUE} if image is not in slideshow
+		 */
+		public int getDistance(Image image);
+	}
+	
+	static private final int BUDGET_HEAP_FRACTION = 4;	// default budget is 1/4 of heap
+	
+	static private final BitmapCache instance = new BitmapCache(Runtime.getRuntime().maxMemory() / BUDGET_HEAP_FRACTION);
+	
+	final private Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);	// access-ordered, by URL
+	private long budget;
+	private long size = 0;
+	private int window = 0;
+	private volatile Cursor cursor;
+	
+	private long hits = 0, misses = 0, evictions = 0;
+	
+	
+	private BitmapCache(long budget){
+		this.budget = budget;
+	}
+	
+	
+	/**
+	 * Get cache shared by all images
+	 * 
+	 * @return
+	 */
+	static public BitmapCache getInstance(){
+		return instance;
+	}
+	
+	
+	/**
+	 * Set cursor to measure distances of images from
+	 * 
+	 * @param cursor	if null, bitmaps are evicted in least recently used order
+	 */
+	public void setCursor(Cursor cursor){
+		this.cursor = cursor;
+	}
+	
+	/**
+	 * Get cursor distances of images are measured from
+	 * 
+	 * @return
+	 */
+	public Cursor getCursor(){
+		return cursor;
+	}
+	
+	
+	/**
+	 * Set byte budget of decoded bitmaps, evicting bitmaps if needed
+	 * 
+	 * @param budget
+	 */
+	public synchronized void setBudget(long budget){
+		if (budget <= 0)
+			throw new IllegalArgumentException("Budget must be positive");
+		this.budget = budget;
+		trim(null);
+	}
+	
+	public synchronized long getBudget(){
+		return budget;
+	}
+	
+	/**
+	 * Set window of images around cursor to keep decoded. Bitmaps out of the window are evicted 
+	 * by {@code trimWindow()}, if their photos can be decoded again from compressed cache
+	 * 
+	 * @param window	distance from cursor, 0 to keep bitmaps within the budget only
+	 */
+	public synchronized void setWindow(int window){
+		if (window < 0)
+			throw new IllegalArgumentException("Window must not be negative");
+		this.window = window;
+		trimWindow();
+	}
+	
+	/**
+	 * Get distance from the cursor within which bitmaps are kept
+	 * 
+	 * @return
+	 */
+	public synchronized int getWindow(){
+		return window;
+	}
+	
+	/**
+	 * Get total size of bitmaps in cache
+	 * 
+	 * @return	size in bytes
+	 */
+	public synchronized long getSize(){
+		return size;
+	}
+	
+	/**
+	 * Get quantity of lookups that found bitmap in cache
+	 * 
+	 * @return
+	 */
+	public synchronized long getHitCount(){
+		return hits;
+	}
+	
+	/**
+	 * Get quantity of lookups that found no bitmap in cache
+	 * 
+	 * @return
+	 */
+	public synchronized long getMissCount(){
+		return misses;
+	}
+	
+	/**
+	 * Get quantity of bitmaps evicted to fit the budget or the window
+	 * 
+	 * @return
+	 */
+	public synchronized long getEvictionCount(){
+		return evictions;
+	}
+	
+	
+	/**
+	 * Put bitmap of the image, evicting other bitmaps if the budget is exceeded. If bitmap of
+	 * image with the same URL is already in cache, the image shares it and the given one is passed to the pool
+	 * 
+	 * @param image
+	 * @param bitmap
+	 * @return	bitmap to be used by the image
+	 */
+	synchronized Bitmap put(Image image, Bitmap bitmap){
+		Entry entry = entries.get(image.getUrl());
+		if (entry != null){
+			if (!entry.images.contains(image)){
+				entry.images.add(image);
+			}
+			if (entry.bitmap != bitmap){
+				BitmapPool.getInstance().put(bitmap);
+			}
+			return entry.bitmap;
+		}
+		entry = new Entry(bitmap);
+		entry.images.add(image);
+		entries.put(image.getUrl(), entry);
+		size += getSize(bitmap);
+		trim(entry);
+		return bitmap;
+	}
+	
+	
+	/**
+	 * Get bitmap of image with the same URL, if it is in cache
+	 * 
+	 * @param image
+	 * @return	bitmap shared with the image, or null if there is none
+	 */
+	synchronized Bitmap share(Image image){
+		Entry entry = entries.get(image.getUrl());
+		if (entry == null){
+			return null;
+		}
+		if (!entry.images.contains(image)){
+			entry.images.add(image);
+		}
+		return entry.bitmap;
+	}
+	
+	
+	/**
+	 * Register use of the image bitmap
+	 * 
+	 * @param image
+	 */
+	synchronized void hit(Image image){
+		if (entries.get(image.getUrl()) != null){
+			hits++;
+		}
+	}
+	
+	
+	/**
+	 * Register request of the bitmap that is not in cache
+	 */
+	synchronized void miss(){
+		misses++;
+	}
+	
+	
+	/**
+	 * Stop sharing bitmap with the image without marking it evicted
+	 * 
+	 * @param image
+	 * @return	bitmap, if no other image uses it and it is removed from cache, null otherwise
+	 */
+	synchronized Bitmap release(Image image){
+		Entry entry = entries.get(image.getUrl());
+		if (entry == null || !entry.images.remove(image) || !entry.images.isEmpty()){
+			return null;
+		}
+		entries.remove(image.getUrl());
+		size -= getSize(entry.bitmap);
+		return entry.bitmap;
+	}
+	
+	
+	/* evict farthest bitmaps until size fits the budget. Bitmap just put and bitmap at cursor are kept */
+	private void trim(Entry entryPut){
+		while (size > budget){
+			String victim = null;
+			int distanceMax = -1;
+			// iteration goes from least recently used, so the first of equally far bitmaps is taken
+			for (Map.Entry<String, Entry> e : entries.entrySet()){
+				if (e.getValue() == entryPut){
+					continue;
+				}
+				int distance = getDistance(e.getValue());
+				if (distance > 0 && distance > distanceMax){
+					distanceMax = distance;
+					victim = e.getKey();
+					if (distance == Integer.MAX_VALUE){
+						break;
+					}
+				}
+			}
+			if (victim == null){
+				break;
+			}
+			evict(entries.remove(victim));
+		}
+	}
+	
+	
+	/**
+	 * Evict bitmaps of images out of the window around cursor, which encoded photos are in compressed cache.
+	 * Bitmaps pinned as displayed are kept
+	 */
+	public synchronized void trimWindow(){
+		CompressedCache compressed = Image.getCompressedCache();
+		if (window == 0 || compressed == null){
+			return;
+		}
+		BitmapPool pool = BitmapPool.getInstance();
+		for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); i.hasNext(); ){
+			Map.Entry<String, Entry> e = i.next();
+			int distance = getDistance(e.getValue());
+			if (distance > window && compressed.contains(e.getKey()) && !pool.isPinned(e.getValue().bitmap)){
+				i.remove();
+				evict(e.getValue());
+			}
+		}
+	}
+	
+	
+	/* mark images of removed entry not ready, and pass its bitmap to the pool */
+	private void evict(Entry entry){
+		size -= getSize(entry.bitmap);
+		for (Image image : entry.images){
+			image.evict();
+		}
+		evictions++;
+		// bitmap still displayed enters the pool only when the view releases it
+		BitmapPool.getInstance().put(entry.bitmap);
+	}
+	
+	
+	/* distance of the nearest image sharing the bitmap */
+	private int getDistance(Entry entry){
+		Cursor cursor = this.cursor;
+		if (cursor == null){
+			return 1;
+		}
+		int distance = Integer.MAX_VALUE;
+		for (Image image : entry.images){
+			distance = Math.min(distance, cursor.getDistance(image));
+		}
+		return distance;
+	}
+	
+	
+	/**
+	 * Forget all bitmaps, marking their images evicted
+	 */
+	public synchronized void clear(){
+		for (Entry entry : entries.values()){
+			for (Image image : entry.images){
+				image.evict();
+			}
+		}
+		entries.clear();
+		size = 0;
+	}
+	
+	
+	static private long getSize(Bitmap bitmap){
+		return (long)bitmap.getRowBytes() * bitmap.getHeight();
+	}
+	
+	
+	/* bitmap shared by images with the same URL */
+	static private class Entry {
+		final Bitmap bitmap;
+		final List<Image> images = new ArrayList<Image>(1);
+		
+		Entry(Bitmap bitmap){
+			this.bitmap = bitmap;
+		}
+	}
+}
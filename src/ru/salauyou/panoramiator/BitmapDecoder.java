@@ -0,0 +1,218 @@
+package ru.salauyou.panoramiator;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * BitmapDecoder decodes downloaded images to bitmaps not much larger than the view they are
+ * displayed in: image is decoded with the greatest power-of-2 sample size that keeps it not smaller 
+ * than the view when fitted into it. Bitmap config depends on memory class of the device.
+ * Bitmaps are decoded mutable, into bitmaps taken from {@code BitmapPool} when possible.
+ */
+public class BitmapDecoder {
+
+	static final int MEMORY_CLASS_LOW = 48;	// MB, devices with less or equal heap use 16-bit bitmaps
+	
+	static private volatile int targetWidth = 0, targetHeight = 0;
+	static private volatile Bitmap.Config config = Bitmap.Config.ARGB_8888;
+	
+	private BitmapDecoder(){
+		// static methods only
+	}
+	
+	
+	/**
+	 * Set size of the view bitmaps are displayed in. Bitmaps decoded before are not affected
+	 * 
+	 * @param width		width in px, if {@code <= 0}, bitmaps are decoded at full size
+	 * @param height	height in px, if {@code <= 0}, bitmaps are decoded at full size
+	 */
+	static public void setTargetSize(int width, int height){
+		targetWidth = width;
+		targetHeight = height;
+	}
+	
+	
+	/**
+	 * Set memory class of the device, to choose bitmap config
+	 * 
+	 * @param memoryClass	heap limit in MB, as returned by {@code ActivityManager.getMemoryClass()}
+	 */
+	static public void setMemoryClass(int memoryClass){
+		config = (memoryClass <= MEMORY_CLASS_LOW) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+	}
+	
+	
+	/**
+	 * Get config bitmaps are decoded with
+	 * 
+	 * @return
+	 */
+	static public Bitmap.Config getConfig(){
+		return config;
+	}
+	
+	
+	/**
+	 * Decode image
+	 * 
+	 * @param data		encoded image
+	 * @param length	length of encoded image in {@code data}
+	 * @return	bitmap, or null if data cannot be decoded
+	 */
+	static public Bitmap decode(byte[] data, int length){
+		return decode(new ArraySource(data, 0, length));
+	}
+	
+	
+	/**
+	 * Decode image from buffer without copying it to heap
+	 * 
+	 * @param data	encoded image, between position and limit of the buffer
+	 * @return	bitmap, or null if data cannot be decoded
+	 */
+	static public Bitmap decode(ByteBuffer data){
+		if (data.hasArray()){
+			return decode(new ArraySource(data.array(), data.arrayOffset() + data.position(), data.remaining()));
+		}
+		return decode(new BufferSource(data));
+	}
+	
+	
+	static private Bitmap decode(Source source){
+		// first pass: read dimensions only
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		source.decode(options);
+		if (options.outWidth <= 0 || options.outHeight <= 0){
+			return null;
+		}
+		Bitmap.Config config = BitmapDecoder.config;
+		options.inSampleSize = getSampleSize(options.outWidth, options.outHeight);
+		if (options.inSampleSize > 1){
+			// read dimensions of sampled bitmap to find reusable one
+			source.decode(options);
+		}
+		// second pass: decode sampled, into pooled bitmap if there is suitable one
+		options.inJustDecodeBounds = false;
+		options.inPreferredConfig = config;
+		options.inMutable = true;
+		options.inBitmap = BitmapPool.getInstance().get(options.outWidth, options.outHeight, config, options.inSampleSize);
+		if (options.inBitmap != null){
+			try {
+				Bitmap bitmap = source.decode(options);
+				if (bitmap != null){
+					BitmapPool.getInstance().countDecode(true);
+				}
+				return bitmap;
+			} catch (IllegalArgumentException e){
+				// pooled bitmap cannot be reused
+				options.inBitmap = null;
+			}
+		}
+		Bitmap bitmap = source.decode(options);
+		if (bitmap != null){
+			BitmapPool.getInstance().countDecode(false);
+		}
+		return bitmap;
+	}
+	
+	
+	/* return the greatest power of 2 such that image sampled by it is not smaller than target size when fitted into it */
+	static private int getSampleSize(int width, int height){
+		int w = targetWidth, h = targetHeight;
+		if (w <= 0 || h <= 0){
+			return 1;
+		}
+		// scale of the image fitted into target
+		float scale = Math.min((float)w / (float)width, (float)h / (float)height);
+		int sampleSize = 1;
+		while (sampleSize * 2 * scale <= 1f){
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+	
+	
+	/* encoded image to be decoded with given options */
+	static private interface Source {
+		public Bitmap decode(BitmapFactory.Options options);
+	}
+	
+	
+	static private class ArraySource implements Source {
+		
+		final private byte[] data;
+		final private int offset, length;
+		
+		ArraySource(byte[] data, int offset, int length){
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+		}
+		
+		@Override
+		public Bitmap decode(BitmapFactory.Options options){
+			return BitmapFactory.decodeByteArray(data, offset, length, options);
+		}
+	}
+	
+	
+	static private class BufferSource implements Source {
+		
+		final private ByteBuffer data;
+		
+		BufferSource(ByteBuffer data){
+			this.data = data;
+		}
+		
+		@Override
+		public Bitmap decode(BitmapFactory.Options options){
+			return BitmapFactory.decodeStream(new ByteBufferInputStream(data.duplicate()), null, options);
+		}
+	}
+	
+	
+	/* stream reading remaining bytes of the buffer */
+	static private class ByteBufferInputStream extends InputStream {
+		
+		final private ByteBuffer buffer;
+		
+		ByteBufferInputStream(ByteBuffer buffer){
+			this.buffer = buffer;
+		}
+		
+		@Override
+		public int read(){
+			return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len){
+			if (len == 0){
+				return 0;
+			}
+			if (!buffer.hasRemaining()){
+				return -1;
+			}
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+		
+		@Override
+		public int available(){
+			return buffer.remaining();
+		}
+		
+		@Override
+		public long skip(long n){
+			int skipped = (int)Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+	}
+}
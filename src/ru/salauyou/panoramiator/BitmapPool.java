@@ -0,0 +1,235 @@
+package ru.salauyou.panoramiator;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * BitmapPool keeps bitmaps that are no longer displayed, grouped by size and config, so 
+ * {@code BitmapDecoder} can decode new images into them instead of allocating new bitmaps.
+ * Before KitKat, bitmap can be reused only for image of the same size decoded without sampling.
+ * Size of the pool is limited, bitmaps put least recently are dropped first. Bitmaps which may be 
+ * displayed are pinned: if such bitmap is put, it enters the pool only after it is unpinned.
+ */
+public class BitmapPool {
+
+	static private final int SIZE_HEAP_FRACTION = 8;	// default size is 1/8 of heap
+	
+	static private final BitmapPool instance = new BitmapPool(Runtime.getRuntime().maxMemory() / SIZE_HEAP_FRACTION);
+	
+	final private Map<String, LinkedList<Bitmap>> groups = new HashMap<String, LinkedList<Bitmap>>();
+	final private Map<Bitmap, String> bitmaps = new LinkedHashMap<Bitmap, String>();	// in order of putting
+	final private Map<Bitmap, Boolean> pinned = new IdentityHashMap<Bitmap, Boolean>();	// value is if put while pinned
+	private long sizeMax;
+	private long size = 0;
+	
+	private long reused = 0, allocated = 0;
+	
+	
+	private BitmapPool(long sizeMax){
+		this.sizeMax = sizeMax;
+	}
+	
+	
+	/**
+	 * Get pool shared by all images
+	 * 
+	 * @return
+	 */
+	static public BitmapPool getInstance(){
+		return instance;
+	}
+	
+	
+	/**
+	 * Set maximum total size of pooled bitmaps, dropping bitmaps if needed
+	 * 
+	 * @param sizeMax	size in bytes, 0 disables pooling
+	 */
+	public synchronized void setSizeMax(long sizeMax){
+		if (sizeMax < 0)
+			throw new IllegalArgumentException("Size must not be negative");
+		this.sizeMax = sizeMax;
+		trim();
+	}
+	
+	/**
+	 * Get total size of pooled bitmaps
+	 * 
+	 * @return	size in bytes
+	 */
+	public synchronized long getSize(){
+		return size;
+	}
+	
+	/**
+	 * Get share of decodes that reused pooled bitmap
+	 * 
+	 * @return	rate from 0 to 1, or 0 if nothing was decoded yet
+	 */
+	public synchronized double getReuseRate(){
+		return reused + allocated == 0 ? 0 : (double)reused / (double)(reused + allocated);
+	}
+	
+	/**
+	 * Get quantity of decodes into pooled bitmaps
+	 * 
+	 * @return
+	 */
+	public synchronized long getReuseCount(){
+		return reused;
+	}
+	
+	/**
+	 * Get quantity of decodes into newly allocated bitmaps
+	 * 
+	 * @return
+	 */
+	public synchronized long getAllocationCount(){
+		return allocated;
+	}
+	
+	
+	/**
+	 * Put bitmap which is not used anymore. Immutable and recycled bitmaps are ignored
+	 * 
+	 * @param bitmap
+	 */
+	public synchronized void put(Bitmap bitmap){
+		if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled() || bitmaps.containsKey(bitmap)){
+			return;
+		}
+		if (pinned.containsKey(bitmap)){
+			pinned.put(bitmap, true);
+			return;
+		}
+		String key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		LinkedList<Bitmap> group = groups.get(key);
+		if (group == null){
+			group = new LinkedList<Bitmap>();
+			groups.put(key, group);
+		}
+		group.add(bitmap);
+		bitmaps.put(bitmap, key);
+		size += getSize(bitmap);
+		trim();
+	}
+	
+	
+	/**
+	 * Pin bitmap which may be displayed, so it is not given for decoding until unpinned.
+	 * If the bitmap is already in the pool, it is taken out until unpinned
+	 * 
+	 * @param bitmap
+	 */
+	public synchronized void pin(Bitmap bitmap){
+		if (pinned.containsKey(bitmap)){
+			return;
+		}
+		String key = bitmaps.remove(bitmap);
+		if (key != null){
+			LinkedList<Bitmap> group = groups.get(key);
+			group.remove(bitmap);
+			if (group.isEmpty()){
+				groups.remove(key);
+			}
+			size -= getSize(bitmap);
+		}
+		pinned.put(bitmap, key != null);
+	}
+	
+	
+	/**
+	 * Unpin bitmap which is not displayed anymore. If it was put while pinned, it enters the pool
+	 * 
+	 * @param bitmap
+	 */
+	public synchronized void unpin(Bitmap bitmap){
+		if (Boolean.TRUE.equals(pinned.remove(bitmap))){
+			put(bitmap);
+		}
+	}
+	
+	
+	/**
+	 * Check if bitmap is pinned
+	 * 
+	 * @param bitmap
+	 * @return
+	 */
+	public synchronized boolean isPinned(Bitmap bitmap){
+		return pinned.containsKey(bitmap);
+	}
+	
+	
+	/**
+	 * Take bitmap to decode image into
+	 * 
+	 * @param width		width of decoded image
+	 * @param height	height of decoded image
+	 * @param config
+	 * @param sampleSize	sample size image is decoded with
+	 * @return	bitmap removed from pool, or null if there is no suitable one
+	 */
+	synchronized Bitmap get(int width, int height, Bitmap.Config config, int sampleSize){
+		Bitmap bitmap = null;
+		if (sampleSize == 1 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT){
+			LinkedList<Bitmap> group = groups.get(getKey(width, height, config));
+			if (group != null){
+				bitmap = group.removeLast();
+				if (group.isEmpty()){
+					groups.remove(getKey(width, height, config));
+				}
+				bitmaps.remove(bitmap);
+				size -= getSize(bitmap);
+			}
+		}
+		return bitmap;
+	}
+	
+	
+	/**
+	 * Count successful decode
+	 * 
+	 * @param reused	if image was decoded into pooled bitmap
+	 */
+	synchronized void countDecode(boolean reused){
+		if (reused){
+			this.reused++;
+		} else {
+			allocated++;
+		}
+	}
+	
+	
+	/* drop bitmaps put least recently until size fits the limit */
+	private void trim(){
+		Iterator<Map.Entry<Bitmap, String>> i = bitmaps.entrySet().iterator();
+		while (size > sizeMax && i.hasNext()){
+			Map.Entry<Bitmap, String> e = i.next();
+			i.remove();
+			LinkedList<Bitmap> group = groups.get(e.getValue());
+			group.remove(e.getKey());
+			if (group.isEmpty()){
+				groups.remove(e.getValue());
+			}
+			size -= getSize(e.getKey());
+		}
+	}
+	
+	
+	static private String getKey(int width, int height, Bitmap.Config config){
+		return width + "x" + height + " " + config;
+	}
+	
+	
+	static private long getSize(Bitmap bitmap){
+		return (long)bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
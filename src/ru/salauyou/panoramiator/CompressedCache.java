@@ -0,0 +1,148 @@
+package ru.salauyou.panoramiator;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * CompressedCache keeps encoded photos in direct buffers, keyed by their URL, so bitmaps evicted 
+ * from memory can be decoded again without reading disk or network. Total size of photos is kept 
+ * under the limit by evicting least recently used ones.
+ */
+public class CompressedCache {
+
+	static public final long SIZE_DEFAULT = 8 * 1024 * 1024;
+	
+	final private Map<String, ByteBuffer> photos = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);	// access-ordered
+	final private long sizeMax;
+	private long size = 0;
+	
+	private long hits = 0, misses = 0;
+	
+	
+	/**
+	 * Create cache
+	 * 
+	 * @param sizeMax	maximum total size of photos, in bytes
+	 */
+	public CompressedCache(long sizeMax){
+		if (sizeMax <= 0)
+			throw new IllegalArgumentException("Size must be positive");
+		this.sizeMax = sizeMax;
+	}
+	
+	
+	/**
+	 * Get encoded photo
+	 * 
+	 * @param url
+	 * @return	read-only buffer, or null if photo is not in cache
+	 */
+	public synchronized ByteBuffer get(String url){
+		ByteBuffer photo = photos.get(url);
+		if (photo == null){
+			misses++;
+			return null;
+		}
+		hits++;
+		return photo.asReadOnlyBuffer();
+	}
+	
+	
+	/**
+	 * Check whether photo is in cache, without updating its recency
+	 * 
+	 * @param url
+	 * @return
+	 */
+	public synchronized boolean contains(String url){
+		return photos.containsKey(url);
+	}
+	
+	
+	/**
+	 * Put encoded photo, evicting least recently used photos if the size limit is exceeded
+	 * 
+	 * @param url
+	 * @param data	encoded photo, between position and limit of the buffer
+	 */
+	public void put(String url, ByteBuffer data){
+		int length = data.remaining();
+		if (length > sizeMax){
+			return;
+		}
+		// copy outside of lock
+		ByteBuffer photo = ByteBuffer.allocateDirect(length);
+		photo.put(data.duplicate());
+		photo.flip();
+		synchronized (this){
+			ByteBuffer old = photos.put(url, photo);
+			size += length - (old == null ? 0 : old.capacity());
+			trim();
+		}
+	}
+	
+	
+	/**
+	 * Put encoded photo, evicting least recently used photos if the size limit is exceeded
+	 * 
+	 * @param url
+	 * @param data
+	 * @param length	length of photo in {@code data}
+	 */
+	public void put(String url, byte[] data, int length){
+		put(url, ByteBuffer.wrap(data, 0, length));
+	}
+	
+	
+	/**
+	 * Remove photo, e. g. if it cannot be decoded
+	 * 
+	 * @param url
+	 */
+	public synchronized void remove(String url){
+		ByteBuffer photo = photos.remove(url);
+		if (photo != null){
+			size -= photo.capacity();
+		}
+	}
+	
+	
+	/**
+	 * Get total size of photos in cache
+	 * 
+	 * @return	size in bytes
+	 */
+	public synchronized long getSize(){
+		return size;
+	}
+	
+	/**
+	 * Get quantity of lookups that found photo in cache
+	 * 
+	 * @return
+	 */
+	public synchronized long getHitCount(){
+		return hits;
+	}
+	
+	/**
+	 * Get quantity of lookups that found no photo in cache
+	 * 
+	 * @return
+	 */
+	public synchronized long getMissCount(){
+		return misses;
+	}
+	
+	
+	/* evict least recently used photos until size fits the limit */
+	private void trim(){
+		Iterator<ByteBuffer> i = photos.values().iterator();
+		while (size > sizeMax && i.hasNext()){
+			size -= i.next().capacity();
+			i.remove();
+		}
+	}
+}
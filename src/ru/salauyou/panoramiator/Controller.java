@@ -1,5 +1,8 @@
 package ru.salauyou.panoramiator;
 
+import java.io.File;
+
+import android.app.ActivityManager;
 import android.content.Context;
 import android.util.Log;
 
@@ -13,6 +16,11 @@ public class Controller {
 	private static volatile Controller instance;
 	private GeolocService geolocService;
 	private ImageContainer imageContainer;
+	private boolean storesOpened = false;
+	
+	static private final String RADIUS_MEMORY_FILE = "radius_memory";
+	static private final String PHOTO_CACHE_DIR = "photos";
+	static private final int DECODED_WINDOW_LOW_MEMORY = 2;
 	
 	private Controller(){
 		// private constructor	
@@ -26,6 +34,35 @@ public class Controller {
 	 */
 	public void runController(Context context){
 		
+		// restore search intervals learned in previous sessions and open cache of photos downloaded 
+		// in previous sessions. Both read files, so they are opened off the main thread
+		if (!storesOpened){
+			storesOpened = true;
+			final Context contextApp = context.getApplicationContext();
+			new Thread(new Runnable(){
+				@Override
+				public void run(){
+					ImageListUpdater.setRadiusMemory(new RadiusMemory(new File(contextApp.getFilesDir(), RADIUS_MEMORY_FILE), 
+							RadiusMemory.CAPACITY_DEFAULT));
+					if (Image.getDiskCache() == null && contextApp.getCacheDir() != null){
+						Image.setDiskCache(new DiskCache(new File(contextApp.getCacheDir(), PHOTO_CACHE_DIR), DiskCache.SIZE_DEFAULT));
+					}
+					Log.d("debug", "Radius memory and photo cache opened");
+				}
+			}, "Panoramiator stores").start();
+		}
+		// choose bitmap config according to heap available
+		ActivityManager activityManager = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+		if (activityManager != null){
+			BitmapDecoder.setMemoryClass(activityManager.getMemoryClass());
+		}
+		// keep encoded photos in memory, and on low-memory devices keep decoded only ones near cursor
+		if (Image.getCompressedCache() == null){
+			Image.setCompressedCache(new CompressedCache(CompressedCache.SIZE_DEFAULT));
+			if (activityManager != null && activityManager.getMemoryClass() <= BitmapDecoder.MEMORY_CLASS_LOW){
+				BitmapCache.getInstance().setWindow(DECODED_WINDOW_LOW_MEMORY);
+			}
+		}
 		// create and run geolocService using context for LocationManager
 		if (geolocService == null){
 			geolocService = new GeolocService(context);
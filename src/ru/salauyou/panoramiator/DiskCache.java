@@ -0,0 +1,380 @@
+package ru.salauyou.panoramiator;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * DiskCache stores encoded photos in a directory, keyed by their URL. Total size of files is kept 
+ * under the limit by evicting least recently used files. Files are written into temporary file 
+ * and renamed, so partially written file is never read. Every change is appended to the journal, 
+ * which is replayed to restore recency order when cache is opened, and compacted when it grows too long.
+ * Files are read as memory-mapped buffers. Written files are synced to disk in batches by background thread, 
+ * a file lost or truncated before its sync is dropped when cache is opened, as its length differs from the journal.
+ */
+public class DiskCache {
+
+	static public final long SIZE_DEFAULT = 32 * 1024 * 1024;
+	
+	static private final String JOURNAL_FILE = "journal";
+	static private final String TEMP_SUFFIX = ".tmp";
+	static private final String CLEAN = "CLEAN";
+	static private final String READ = "READ";
+	static private final String REMOVE = "REMOVE";
+	static private final int JOURNAL_COMPACT_MIN = 1000;	// lines
+	static private final long SYNC_DELAY = 2000;			// ms
+	
+	final private File directory;
+	final private long sizeMax;
+	final private Map<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);	// access-ordered, key -> size
+	private long size = 0;
+	private PrintWriter journal;
+	private int journalLines = 0;
+	final private Set<String> unsynced = new LinkedHashSet<String>();	// keys of files written since the last sync
+	private ScheduledExecutorService syncer;	// created on first put
+	private boolean syncScheduled = false;
+	
+	private long hits = 0, misses = 0;
+	
+	
+	/**
+	 * Open cache in the directory, creating it if needed
+	 * 
+	 * @param directory
+	 * @param sizeMax	maximum total size of files, in bytes
+	 */
+	public DiskCache(File directory, long sizeMax){
+		if (directory == null)
+			throw new NullPointerException("Directory is null");
+		if (sizeMax <= 0)
+			throw new IllegalArgumentException("Size must be positive");
+		this.directory = directory;
+		this.sizeMax = sizeMax;
+		if (!directory.isDirectory() && !directory.mkdirs()){
+			Log.d("debug", "Disk cache directory cannot be created");
+		}
+		readJournal();
+		deleteUntracked();
+		writeJournal();
+	}
+	
+	
+	/**
+	 * Get encoded photo 
+	 * 
+	 * @param url
+	 * @return	read-only buffer mapped to the file, or null if photo is not in cache
+	 */
+	public ByteBuffer get(String url){
+		String key = getKey(url);
+		RandomAccessFile file = null;
+		try {
+			// file is opened under lock, so it cannot be deleted by trim in between
+			synchronized (this){
+				if (entries.get(key) == null){
+					misses++;
+					return null;
+				}
+				hits++;
+				appendJournal(READ, key);
+				file = new RandomAccessFile(new File(directory, key), "r");
+			}
+			FileChannel channel = file.getChannel();
+			// mapping stays valid after the file is closed or deleted
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException e){
+			Log.d("debug", "Cached photo by url:" + url + " cannot be read");
+			removeKey(key);
+			return null;
+		} finally {
+			close(file);
+		}
+	}
+	
+	
+	/**
+	 * Put encoded photo, evicting least recently used photos if the size limit is exceeded.
+	 * The file is synced to disk later, by background thread
+	 * 
+	 * @param url
+	 * @param data
+	 * @param length	length of photo in {@code data}
+	 */
+	public void put(String url, byte[] data, int length){
+		if (length > sizeMax){
+			return;
+		}
+		String key = getKey(url);
+		File temp = new File(directory, key + TEMP_SUFFIX + Thread.currentThread().getId());
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			out.write(data, 0, length);
+			out.close();
+			out = null;
+			synchronized (this){
+				if (!temp.renameTo(new File(directory, key))){
+					throw new IOException("Cannot rename " + temp);
+				}
+				Long old = entries.put(key, Long.valueOf(length));
+				size += length - (old == null ? 0 : old.longValue());
+				appendJournal(CLEAN, key + " " + length);
+				trim();
+				unsynced.add(key);
+				scheduleSync();
+			}
+		} catch (IOException e){
+			Log.d("debug", "Photo by url:" + url + " cannot be cached");
+			temp.delete();
+		} finally {
+			close(out);
+		}
+	}
+	
+	
+	/**
+	 * Get total size of cached photos
+	 * 
+	 * @return	size in bytes
+	 */
+	public synchronized long getSize(){
+		return size;
+	}
+	
+	public synchronized long getHitCount(){
+		return hits;
+	}
+	
+	public synchronized long getMissCount(){
+		return misses;
+	}
+	
+	
+	/**
+	 * Remove photo, e. g. if it cannot be decoded
+	 * 
+	 * @param url
+	 */
+	public void remove(String url){
+		removeKey(getKey(url));
+	}
+	
+	
+	/* forget and delete file */
+	private synchronized void removeKey(String key){
+		Long length = entries.remove(key);
+		if (length != null){
+			size -= length.longValue();
+			new File(directory, key).delete();
+			appendJournal(REMOVE, key);
+		}
+	}
+	
+	
+	/* schedule sync of written files, unless it is already scheduled. Called under lock */
+	private void scheduleSync(){
+		if (syncScheduled){
+			return;
+		}
+		if (syncer == null){
+			syncer = Executors.newSingleThreadScheduledExecutor();
+		}
+		syncScheduled = true;
+		syncer.schedule(new Runnable(){
+			@Override
+			public void run(){
+				sync();
+			}
+		}, SYNC_DELAY, TimeUnit.MILLISECONDS);
+	}
+	
+	
+	/* sync files written since the last sync. Runs in syncer thread */
+	private void sync(){
+		List<String> keys;
+		synchronized (this){
+			syncScheduled = false;
+			keys = new ArrayList<String>(unsynced);
+			unsynced.clear();
+		}
+		for (String key : keys){
+			FileInputStream in = null;
+			try {
+				in = new FileInputStream(new File(directory, key));
+				in.getFD().sync();
+			} catch (FileNotFoundException e){
+				// evicted already
+			} catch (IOException e){
+				Log.d("debug", "Cached photo cannot be synced");
+			} finally {
+				close(in);
+			}
+		}
+	}
+	
+	
+	/* delete least recently used files until size fits the limit */
+	private void trim(){
+		Iterator<Map.Entry<String, Long>> i = entries.entrySet().iterator();
+		while (size > sizeMax && i.hasNext()){
+			Map.Entry<String, Long> e = i.next();
+			i.remove();
+			size -= e.getValue().longValue();
+			new File(directory, e.getKey()).delete();
+			appendJournal(REMOVE, e.getKey());
+		}
+	}
+	
+	
+	/* replay journal, line format is 'CLEAN key size', 'READ key' or 'REMOVE key' */
+	private void readJournal(){
+		File file = new File(directory, JOURNAL_FILE);
+		if (!file.exists()){
+			return;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			String line;
+			while ((line = reader.readLine()) != null){
+				String[] parts = line.split(" ");
+				if (parts.length == 3 && parts[0].equals(CLEAN)){
+					Long old = entries.put(parts[1], Long.valueOf(parts[2]));
+					size += Long.parseLong(parts[2]) - (old == null ? 0 : old.longValue());
+				} else if (parts.length == 2 && parts[0].equals(READ)){
+					entries.get(parts[1]);
+				} else if (parts.length == 2 && parts[0].equals(REMOVE)){
+					Long old = entries.remove(parts[1]);
+					size -= (old == null ? 0 : old.longValue());
+				}
+				// truncated last line is ignored
+			}
+		} catch (IOException e){
+			Log.d("debug", "Disk cache journal cannot be read");
+		} catch (NumberFormatException e){
+			Log.d("debug", "Disk cache journal is corrupted");
+		} finally {
+			close(reader);
+		}
+		// drop entries which files are missing
+		for (Iterator<Map.Entry<String, Long>> i = entries.entrySet().iterator(); i.hasNext(); ){
+			Map.Entry<String, Long> e = i.next();
+			if (new File(directory, e.getKey()).length() != e.getValue().longValue()){
+				i.remove();
+				size -= e.getValue().longValue();
+			}
+		}
+		trim();
+	}
+	
+	
+	/* delete temporary files and files not mentioned in journal */
+	private void deleteUntracked(){
+		File[] files = directory.listFiles();
+		if (files == null){
+			return;
+		}
+		for (File file : files){
+			if (!file.getName().equals(JOURNAL_FILE) && !entries.containsKey(file.getName())){
+				file.delete();
+			}
+		}
+	}
+	
+	
+	/* write compact journal into temporary file, replace the journal by it and open it for appending */
+	private void writeJournal(){
+		if (journal != null){
+			journal.close();
+			journal = null;
+		}
+		File file = new File(directory, JOURNAL_FILE);
+		File temp = new File(directory, JOURNAL_FILE + TEMP_SUFFIX);
+		PrintWriter writer = null;
+		try {
+			writer = new PrintWriter(new FileWriter(temp));
+			// iteration order is from least to most recently used
+			for (Map.Entry<String, Long> e : entries.entrySet()){
+				writer.println(CLEAN + " " + e.getKey() + " " + e.getValue());
+			}
+			writer.close();
+			writer = null;
+			if (!temp.renameTo(file)){
+				throw new IOException("Cannot rename " + temp);
+			}
+			journal = new PrintWriter(new FileWriter(file, true));
+			journalLines = entries.size();
+		} catch (IOException e){
+			Log.d("debug", "Disk cache journal cannot be written");
+		} finally {
+			if (writer != null){
+				writer.close();
+			}
+		}
+	}
+	
+	
+	private void appendJournal(String action, String args){
+		if (journal == null){
+			return;
+		}
+		journal.println(action + " " + args);
+		journal.flush();
+		journalLines++;
+		if (journalLines > JOURNAL_COMPACT_MIN && journalLines > 2 * entries.size()){
+			writeJournal();
+		}
+	}
+	
+	
+	/* return file name for URL: hex of its MD5 */
+	static private String getKey(String url){
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+			StringBuilder key = new StringBuilder(digest.length * 2);
+			for (byte b : digest){
+				key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e){
+			throw new IllegalStateException(e);
+		} catch (IOException e){
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	
+	static private void close(Closeable closeable){
+		if (closeable != null){
+			try {
+				closeable.close();
+			} catch (IOException e){
+				// nothing to do
+			}
+		}
+	}
+}
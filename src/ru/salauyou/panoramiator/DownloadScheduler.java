@@ -0,0 +1,530 @@
+package ru.salauyou.panoramiator;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * DownloadScheduler runs downloads of image bitmaps in order of distance of the images 
+ * from slideshow cursor, so the image to be displayed next is downloaded first. Images
+ * requested at the same distance are downloaded in order of request. Images with the same URL
+ * requested while its download is queued or running share that download: bitmap is transferred 
+ * and decoded once and handed to every image waiting for it.
+ * <p>
+ * Downloads run in two stages: I/O stage reads photo from memory cache, disk cache or network into pooled buffer,
+ * decode stage, having a thread per core, decodes it. Number of I/O threads follows {@code AdaptiveLimit}
+ * fed by network transfers. Downloads from hosts suspended by {@code RetryPolicy} are postponed without connecting. Queue between stages is bounded, so I/O stage 
+ * waits when decoding falls behind.
+ */
+public class DownloadScheduler {
+
+	/**
+	 * Metrics of a pipeline stage
+	 */
+	static public class Metrics {
+		final public int queueDepth;			// tasks waiting for the stage
+		final public long completed;			// tasks completed by the stage
+		final public long waitTimeAverage;		// ms a task waited for the stage
+		final public long serviceTimeAverage;	// ms a task spent in the stage
+		
+		Metrics(int queueDepth, long completed, long waitTimeAverage, long serviceTimeAverage){
+			this.queueDepth = queueDepth;
+			this.completed = completed;
+			this.waitTimeAverage = waitTimeAverage;
+			this.serviceTimeAverage = serviceTimeAverage;
+		}
+		
+		@Override
+		public String toString(){
+			return "queue " + queueDepth + ", completed " + completed + ", wait " + waitTimeAverage 
+					+ " ms, service " + serviceTimeAverage + " ms";
+		}
+	}
+	
+	static private final int THREADS_IO_INITIAL = 2;
+	static private final int THREADS_IO_MIN = 1;
+	static private final int THREADS_IO_MAX = 16;
+	static private final int THREADS_DECODE = Math.max(1, Runtime.getRuntime().availableProcessors());
+	static private final int DECODE_QUEUE_CAPACITY = 4;
+	static private final long KEEP_ALIVE = 30;	// sec
+	static private final int BUFFER_SIZE = 128 * 1024;
+	static private final int BUFFERS_POOLED = 8;
+	
+	static private final DownloadScheduler instance = new DownloadScheduler();
+	
+	final private PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<Runnable>();
+	final private ThreadPoolExecutor executorIo;
+	final private ThreadPoolExecutor executorDecode;
+	final private Map<String, Download> downloads = new HashMap<String, Download>();	// queued and running, by URL
+	final private LinkedList<byte[]> buffers = new LinkedList<byte[]>();
+	final private StageCounter counterIo = new StageCounter();
+	final private StageCounter counterDecode = new StageCounter();
+	final private AdaptiveLimit limitIo = new AdaptiveLimit(THREADS_IO_INITIAL, THREADS_IO_MIN, THREADS_IO_MAX);
+	private volatile BitmapCache.Cursor cursor;
+	private long sequence = 0;
+	private int queued = 0;
+	
+	
+	private DownloadScheduler(){
+		executorIo = new ThreadPoolExecutor(THREADS_IO_INITIAL, THREADS_IO_INITIAL, KEEP_ALIVE, TimeUnit.SECONDS, queue);
+		executorIo.allowCoreThreadTimeOut(true);
+		// when decode queue is full, I/O thread waits for space in it
+		executorDecode = new ThreadPoolExecutor(THREADS_DECODE, THREADS_DECODE, KEEP_ALIVE, TimeUnit.SECONDS, 
+				new ArrayBlockingQueue<Runnable>(DECODE_QUEUE_CAPACITY), new RejectedExecutionHandler(){
+					@Override
+					public void rejectedExecution(Runnable task, ThreadPoolExecutor executor){
+						try {
+							executor.getQueue().put(task);
+						} catch (InterruptedException e){
+							Thread.currentThread().interrupt();
+							task.run();
+						}
+					}
+				});
+		executorDecode.allowCoreThreadTimeOut(true);
+	}
+	
+	
+	/**
+	 * Get scheduler shared by all images
+	 * 
+	 * @return
+	 */
+	static public DownloadScheduler getInstance(){
+		return instance;
+	}
+	
+	
+	/**
+	 * Set cursor to measure distances of images from
+	 * 
+	 * @param cursor	if null, images are downloaded in order of request
+	 */
+	public void setCursor(BitmapCache.Cursor cursor){
+		this.cursor = cursor;
+		reprioritize();
+	}
+	
+	/**
+	 * Get cursor distances of images are measured from
+	 * 
+	 * @return
+	 */
+	public BitmapCache.Cursor getCursor(){
+		return cursor;
+	}
+	
+	
+	/**
+	 * Get quantity of downloads waiting in queue
+	 * 
+	 * @return
+	 */
+	public synchronized int getQueueSize(){
+		return queued;
+	}
+	
+	
+	/**
+	 * Get quantity of downloads queued or running
+	 * 
+	 * @return
+	 */
+	public synchronized int getInFlightSize(){
+		return downloads.size();
+	}
+	
+	
+	/**
+	 * Get metrics of I/O stage
+	 * 
+	 * @return
+	 */
+	public Metrics getMetricsIo(){
+		return counterIo.getMetrics(getQueueSize());
+	}
+	
+	
+	/**
+	 * Get metrics of decode stage
+	 * 
+	 * @return
+	 */
+	public Metrics getMetricsDecode(){
+		return counterDecode.getMetrics(executorDecode.getQueue().size());
+	}
+	
+	
+	/**
+	 * Get state of I/O stage concurrency, which is adjusted according to measured network transfers
+	 * 
+	 * @return
+	 */
+	public AdaptiveLimit.State getConcurrency(){
+		return limitIo.getState();
+	}
+	
+	
+	/* resize I/O stage to the limit */
+	private synchronized void applyLimit(){
+		int limit = limitIo.getLimit();
+		if (limit > executorIo.getMaximumPoolSize()){
+			executorIo.setMaximumPoolSize(limit);
+			executorIo.setCorePoolSize(limit);
+		} else {
+			// excess threads finish after their current downloads
+			executorIo.setCorePoolSize(limit);
+			executorIo.setMaximumPoolSize(limit);
+		}
+		Log.println(Log.DEBUG, "panoramiator", "Download concurrency: " + limitIo.getState());
+	}
+	
+	
+	/**
+	 * Update order of queued downloads after cursor was moved or slideshow was changed
+	 */
+	public synchronized void reprioritize(){
+		if (queued == 0){
+			return;
+		}
+		List<Runnable> drained = new ArrayList<Runnable>(queued);
+		queue.drainTo(drained);
+		for (Runnable download : drained){
+			((Download)download).updateDistance();
+		}
+		queue.addAll(drained);
+	}
+	
+	
+	/**
+	 * Queue download of the image bitmap, or join download of the same URL if it is queued or running
+	 * 
+	 * @param image
+	 */
+	synchronized void submit(Image image){
+		Download download = downloads.get(image.getUrl());
+		if (download != null){
+			if (!download.images.contains(image)){
+				download.images.add(image);
+				if (!download.started && queue.remove(download)){
+					download.updateDistance();
+					queue.add(download);
+				}
+			}
+			return;
+		}
+		download = new Download(image.getUrl(), sequence++);
+		download.images.add(image);
+		download.updateDistance();
+		downloads.put(image.getUrl(), download);
+		queued++;
+		executorIo.execute(download);
+	}
+	
+	
+	/**
+	 * Stop waiting for the image bitmap. Download is removed from queue when no image waits for it.
+	 * If it is already started, it is completed, and its bitmap is passed to the pool if no image waits for it
+	 * 
+	 * @param image
+	 * @return	true if image was waiting for download, false otherwise
+	 */
+	synchronized boolean cancel(Image image){
+		Download download = downloads.get(image.getUrl());
+		if (download == null || !download.images.remove(image)){
+			return false;
+		}
+		if (download.images.isEmpty() && !download.started){
+			// if a worker has already taken it, it will be skipped
+			downloads.remove(download.url);
+			queue.remove(download);
+			queued--;
+		}
+		return true;
+	}
+	
+	
+	/* mark download started, return false if it was cancelled */
+	private synchronized boolean start(Download download){
+		if (downloads.get(download.url) != download){
+			return false;
+		}
+		download.started = true;
+		queued--;
+		return true;
+	}
+	
+	
+	/* remove finished download and hand the bitmap to images waiting for it. It is done under lock, 
+	 * so an image cancelled meanwhile either gets the bitmap before it is cancelled or doesn't get it at all */
+	private synchronized void finish(Download download, Bitmap bitmap){
+		downloads.remove(download.url);
+		for (Image image : download.images){
+			image.setBitmap(bitmap);
+		}
+		if (download.images.isEmpty()){
+			// all images were cancelled while it was running
+			BitmapPool.getInstance().put(bitmap);
+		}
+	}
+	
+	
+	/* remove download which was not attempted and postpone images waiting for it */
+	private void defer(Download download, long time){
+		List<Image> images;
+		synchronized (this){
+			downloads.remove(download.url);
+			images = new ArrayList<Image>(download.images);
+		}
+		for (Image image : images){
+			image.deferDownload(time);
+		}
+	}
+	
+	
+	/* take buffer from pool or allocate new one */
+	private byte[] takeBuffer(int size){
+		synchronized (buffers){
+			for (int i = 0; i < buffers.size(); i++){
+				if (buffers.get(i).length >= size){
+					return buffers.remove(i);
+				}
+			}
+		}
+		return new byte[Math.max(size, BUFFER_SIZE)];
+	}
+	
+	
+	private void giveBuffer(byte[] buffer){
+		synchronized (buffers){
+			if (buffers.size() < BUFFERS_POOLED){
+				buffers.add(buffer);
+			}
+		}
+	}
+	
+	
+	/* return true if request failed because of the photo itself, not the network: 
+	 * its URL is malformed or the server responded with 4xx */
+	static private boolean isPhotoError(URLConnection connection, IOException e){
+		if (e instanceof FileNotFoundException || e instanceof MalformedURLException){
+			return true;
+		}
+		if (connection instanceof HttpURLConnection){
+			try {
+				int code = ((HttpURLConnection)connection).getResponseCode();
+				return code >= 400 && code < 500;
+			} catch (IOException ex){
+				// no response
+			}
+		}
+		return false;
+	}
+	
+	
+	
+	/* I/O stage task */
+	private class Download implements Runnable, Comparable<Download> {
+		
+		final String url;
+		final long sequence;
+		final long enqueued = System.nanoTime();
+		final List<Image> images = new ArrayList<Image>(1);
+		boolean started = false;
+		int distance;
+		
+		Download(String url, long sequence){
+			this.url = url;
+			this.sequence = sequence;
+		}
+		
+		/* distance of the nearest waiting image */
+		void updateDistance(){
+			BitmapCache.Cursor cursor = DownloadScheduler.this.cursor;
+			distance = Integer.MAX_VALUE;
+			for (Image image : images){
+				distance = Math.min(distance, cursor == null ? 0 : cursor.getDistance(image));
+			}
+		}
+		
+		@Override
+		public void run(){
+			if (!start(this)){
+				return;
+			}
+			long started = System.nanoTime();
+			// look up memory, then disk
+			CompressedCache memory = Image.getCompressedCache();
+			DiskCache cache = Image.getDiskCache();
+			ByteBuffer cached = memory == null ? null : memory.get(url);
+			if (cached == null && cache != null){
+				cached = cache.get(url);
+				if (cached != null && memory != null){
+					memory.put(url, cached);
+				}
+			}
+			Decode decode = null;
+			RetryPolicy policy = RetryPolicy.getInstance();
+			if (cached != null){
+				decode = new Decode(this, cached, null, 0);
+			} else if (!policy.allowRequest(url)){
+				// host is suspended after failures
+				counterIo.record(started - enqueued, System.nanoTime() - started);
+				defer(this, policy.getRetryTime(url));
+				return;
+			} else {
+				byte[] buffer = null;
+				URLConnection connection = null;
+				long transferStarted = System.nanoTime();
+				try {
+					connection = new URL(url).openConnection();
+					InputStream in = connection.getInputStream();
+					int contentLength = connection.getContentLength();
+					buffer = takeBuffer(contentLength);
+					int length = 0;
+					try {
+						int read;
+						while ((read = in.read(buffer, length, buffer.length - length)) >= 0){
+							length += read;
+							if (length == buffer.length){
+								byte[] bufferLarger = new byte[buffer.length * 2];
+								System.arraycopy(buffer, 0, bufferLarger, 0, length);
+								buffer = bufferLarger;
+							}
+						}
+					} finally {
+						in.close();
+					}
+					// connection closed before the whole photo was received
+					if (contentLength >= 0 && length != contentLength){
+						throw new IOException("Received " + length + " of " + contentLength + " bytes");
+					}
+					policy.onSuccess(url);
+					if (limitIo.onSuccess(length, System.nanoTime() - transferStarted, getQueueSize() > 0)){
+						applyLimit();
+					}
+					decode = new Decode(this, null, buffer, length);
+				} catch (IOException e){
+					Log.d("debug", "Image by url:" + url + " cannot be downloaded");
+					// only network failures count against the host
+					if (!isPhotoError(connection, e)){
+						policy.onFailure(url);
+					}
+					if (limitIo.onFailure(System.nanoTime() - transferStarted)){
+						applyLimit();
+					}
+					if (buffer != null){
+						giveBuffer(buffer);
+					}
+				}
+			}
+			counterIo.record(started - enqueued, System.nanoTime() - started);
+			if (decode != null){
+				executorDecode.execute(decode);
+			} else {
+				finish(this, null);
+			}
+		}
+		
+		@Override
+		public int compareTo(Download other){
+			if (distance != other.distance){
+				return distance < other.distance ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+	
+	
+	
+	/* decode stage task, decodes either cached file or downloaded buffer. Downloaded photo is cached 
+	 * only if it is decoded */
+	private class Decode implements Runnable {
+		
+		final Download download;
+		final ByteBuffer cached;
+		final byte[] buffer;
+		final int length;
+		final long enqueued = System.nanoTime();
+		
+		Decode(Download download, ByteBuffer cached, byte[] buffer, int length){
+			this.download = download;
+			this.cached = cached;
+			this.buffer = buffer;
+			this.length = length;
+		}
+		
+		@Override
+		public void run(){
+			long started = System.nanoTime();
+			Bitmap bitmap;
+			if (cached != null){
+				bitmap = BitmapDecoder.decode(cached);
+				if (bitmap == null){
+					Log.d("debug", "Cached image by url:" + download.url + " cannot be decoded");
+					CompressedCache memory = Image.getCompressedCache();
+					if (memory != null){
+						memory.remove(download.url);
+					}
+					DiskCache cache = Image.getDiskCache();
+					if (cache != null){
+						cache.remove(download.url);
+					}
+				}
+			} else {
+				bitmap = BitmapDecoder.decode(buffer, length);
+				if (bitmap != null){
+					DiskCache cache = Image.getDiskCache();
+					if (cache != null){
+						cache.put(download.url, buffer, length);
+					}
+					CompressedCache memory = Image.getCompressedCache();
+					if (memory != null){
+						memory.put(download.url, buffer, length);
+					}
+				}
+				giveBuffer(buffer);
+			}
+			counterDecode.record(started - enqueued, System.nanoTime() - started);
+			finish(download, bitmap);
+		}
+	}
+	
+	
+	
+	/* accumulates wait and service times of a stage */
+	static private class StageCounter {
+		
+		private long completed = 0;
+		private long waitTime = 0, serviceTime = 0;	// ns
+		
+		synchronized void record(long wait, long service){
+			completed++;
+			waitTime += wait;
+			serviceTime += service;
+		}
+		
+		synchronized Metrics getMetrics(int queueDepth){
+			return completed == 0 ? new Metrics(queueDepth, 0, 0, 0) 
+					: new Metrics(queueDepth, completed, waitTime / completed / 1000000, serviceTime / completed / 1000000);
+		}
+	}
+}
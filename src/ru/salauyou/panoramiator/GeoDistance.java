@@ -0,0 +1,138 @@
+package ru.salauyou.panoramiator;
+
+/**
+ * GeoDistance calculates distances between geographic points given by longitude and latitude 
+ * in degrees. It is free of Android platform classes and doesn't allocate objects. 
+ * Distances are returned in meters.
+ */
+public class GeoDistance {
+
+	/**
+	 * Calculation modes, from the fastest to the most accurate
+	 */
+	public enum Mode {
+		
+		/**
+		 * Equirectangular projection on sphere. Error against {@code PRECISE} is within 0.5% 
+		 * (spherical model) plus 0.1% for distances up to 10 km below 70 degrees of latitude,
+		 * growing with distance and latitude. Suitable for ranking nearby points
+		 */
+		FAST, 
+		
+		/**
+		 * Haversine formula on sphere. Error against {@code PRECISE} is within 0.5% at any distance
+		 */
+		HAVERSINE, 
+		
+		/**
+		 * Vincenty formula on WGS84 ellipsoid, the same as {@code android.location.Location} uses. 
+		 * Error is within 1 mm, except nearly antipodal points where it falls back to {@code HAVERSINE}
+		 */
+		PRECISE
+	}
+	
+	static private final double EARTH_RADIUS = 6371008.8;		// mean radius, m
+	static private final double WGS84_A = 6378137.0;			// semi-major axis, m
+	static private final double WGS84_F = 1.0 / 298.257223563;	// flattening
+	static private final double WGS84_B = WGS84_A * (1.0 - WGS84_F);
+	static private final int VINCENTY_ITERATIONS = 20;
+	static private final double RAD = Math.PI / 180.0;
+	
+	private GeoDistance(){
+		// static methods only
+	}
+	
+	
+	/**
+	 * Get distance between two points
+	 * 
+	 * @param longitude1
+	 * @param latitude1
+	 * @param longitude2
+	 * @param latitude2
+	 * @param mode		calculation mode
+	 * @return	distance in meters
+	 */
+	static public double distance(double longitude1, double latitude1, double longitude2, double latitude2, Mode mode){
+		switch (mode){
+		case FAST:
+			return distanceFast(longitude1, latitude1, longitude2, latitude2);
+		case HAVERSINE:
+			return distanceHaversine(longitude1, latitude1, longitude2, latitude2);
+		default:
+			return distancePrecise(longitude1, latitude1, longitude2, latitude2);
+		}
+	}
+	
+	
+	/* equirectangular approximation */
+	static private double distanceFast(double longitude1, double latitude1, double longitude2, double latitude2){
+		double x = getLongitudeDifference(longitude1, longitude2) * RAD * Math.cos((latitude1 + latitude2) / 2.0 * RAD);
+		double y = (latitude2 - latitude1) * RAD;
+		return EARTH_RADIUS * Math.sqrt(x * x + y * y);
+	}
+	
+	
+	/* haversine formula */
+	static private double distanceHaversine(double longitude1, double latitude1, double longitude2, double latitude2){
+		double sinLat = Math.sin((latitude2 - latitude1) * RAD / 2.0);
+		double sinLon = Math.sin(getLongitudeDifference(longitude1, longitude2) * RAD / 2.0);
+		double h = sinLat * sinLat + Math.cos(latitude1 * RAD) * Math.cos(latitude2 * RAD) * sinLon * sinLon;
+		return 2.0 * EARTH_RADIUS * Math.asin(Math.min(1.0, Math.sqrt(h)));
+	}
+	
+	
+	/* Vincenty inverse formula */
+	static private double distancePrecise(double longitude1, double latitude1, double longitude2, double latitude2){
+		double l = getLongitudeDifference(longitude1, longitude2) * RAD;
+		double u1 = Math.atan((1.0 - WGS84_F) * Math.tan(latitude1 * RAD));
+		double u2 = Math.atan((1.0 - WGS84_F) * Math.tan(latitude2 * RAD));
+		double sinU1 = Math.sin(u1), cosU1 = Math.cos(u1);
+		double sinU2 = Math.sin(u2), cosU2 = Math.cos(u2);
+		
+		double lambda = l, lambdaPrec;
+		double sinSigma, cosSigma, sigma, cosSqAlpha, cos2SigmaM;
+		int iterations = 0;
+		do {
+			double sinLambda = Math.sin(lambda), cosLambda = Math.cos(lambda);
+			double a = cosU2 * sinLambda;
+			double b = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+			sinSigma = Math.sqrt(a * a + b * b);
+			if (sinSigma == 0){
+				return 0;	// coincident points
+			}
+			cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+			sigma = Math.atan2(sinSigma, cosSigma);
+			double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+			cosSqAlpha = 1.0 - sinAlpha * sinAlpha;
+			cos2SigmaM = (cosSqAlpha == 0) ? 0 : cosSigma - 2.0 * sinU1 * sinU2 / cosSqAlpha;	// equatorial line
+			double c = WGS84_F / 16.0 * cosSqAlpha * (4.0 + WGS84_F * (4.0 - 3.0 * cosSqAlpha));
+			lambdaPrec = lambda;
+			lambda = l + (1.0 - c) * WGS84_F * sinAlpha 
+					* (sigma + c * sinSigma * (cos2SigmaM + c * cosSigma * (-1.0 + 2.0 * cos2SigmaM * cos2SigmaM)));
+		} while (Math.abs(lambda - lambdaPrec) > 1e-12 && ++iterations < VINCENTY_ITERATIONS);
+		
+		if (iterations >= VINCENTY_ITERATIONS){
+			return distanceHaversine(longitude1, latitude1, longitude2, latitude2);
+		}
+		
+		double uSq = cosSqAlpha * (WGS84_A * WGS84_A - WGS84_B * WGS84_B) / (WGS84_B * WGS84_B);
+		double a = 1.0 + uSq / 16384.0 * (4096.0 + uSq * (-768.0 + uSq * (320.0 - 175.0 * uSq)));
+		double b = uSq / 1024.0 * (256.0 + uSq * (-128.0 + uSq * (74.0 - 47.0 * uSq)));
+		double deltaSigma = b * sinSigma * (cos2SigmaM + b / 4.0 * (cosSigma * (-1.0 + 2.0 * cos2SigmaM * cos2SigmaM)
+				- b / 6.0 * cos2SigmaM * (-3.0 + 4.0 * sinSigma * sinSigma) * (-3.0 + 4.0 * cos2SigmaM * cos2SigmaM)));
+		return WGS84_B * a * (sigma - deltaSigma);
+	}
+	
+	
+	/* return difference of longitudes in degrees, normalized into [-180, 180] to cross antimeridian properly */
+	static private double getLongitudeDifference(double longitude1, double longitude2){
+		double d = longitude2 - longitude1;
+		if (d > 180.0){
+			d -= 360.0;
+		} else if (d < -180.0){
+			d += 360.0;
+		}
+		return d;
+	}
+}
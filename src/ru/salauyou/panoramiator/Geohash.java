@@ -0,0 +1,57 @@
+package ru.salauyou.panoramiator;
+
+/**
+ * Geohash encodes geographic coordinates into short strings, such that nearby points
+ * share common prefix. Cell of precision 6 is about 1.2 x 0.6 km, of precision 5 -- about 4.9 x 4.9 km.
+ */
+public class Geohash {
+
+	static private final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+	
+	private Geohash(){
+		// static methods only
+	}
+	
+	/**
+	 * Get geohash of the cell containing given point
+	 * 
+	 * @param longitude
+	 * @param latitude
+	 * @param precision	length of geohash in chars
+	 * @return
+	 */
+	static public String encode(double longitude, double latitude, int precision){
+		double lonMin = -180.0, lonMax = 180.0;
+		double latMin = -90.0, latMax = 90.0;
+		char[] hash = new char[precision];
+		boolean even = true;	// even bits refine longitude, odd bits refine latitude
+		for (int i = 0; i < precision; i++){
+			int ch = 0;
+			for (int bit = 0; bit < 5; bit++){
+				double mid;
+				if (even){
+					mid = (lonMin + lonMax) / 2.0;
+					if (longitude >= mid){
+						ch = (ch << 1) | 1;
+						lonMin = mid;
+					} else {
+						ch = ch << 1;
+						lonMax = mid;
+					}
+				} else {
+					mid = (latMin + latMax) / 2.0;
+					if (latitude >= mid){
+						ch = (ch << 1) | 1;
+						latMin = mid;
+					} else {
+						ch = ch << 1;
+						latMax = mid;
+					}
+				}
+				even = !even;
+			}
+			hash[i] = BASE32[ch];
+		}
+		return new String(hash);
+	}
+}
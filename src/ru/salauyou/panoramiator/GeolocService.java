@@ -57,6 +57,9 @@ public class GeolocService {
 	static public final long PERIOD_UPDATE_GPS = 15;		// period (seconds) in which GPS location should be updated
 	static public final long PERIOD_UPDATE_NETWORK = 60;	// same for network location
 	
+	// fixes are compared with their accuracy of meters, so haversine is accurate enough
+	static private final GeoDistance.Mode DISTANCE_MODE_FILTER = GeoDistance.Mode.HAVERSINE;
+	
 	protected List<Listener> listeners;
 	protected Location location;	
 	protected Status locationStatus;	
@@ -98,7 +101,7 @@ public class GeolocService {
 						  || !isGpsAvailable    // 3 
 						) && ((locationNew.hasAccuracy() && !location.hasAccuracy())  // 4
 						       || (locationNew.hasAccuracy() && location.hasAccuracy() && (locationNew.getAccuracy() < location.getAccuracy())) // 5
-						       || (locationNew.hasAccuracy() && location.hasAccuracy() && (locationNew.distanceTo(location) > locationNew.getAccuracy() + location.getAccuracy())) // 6
+						       || (locationNew.hasAccuracy() && location.hasAccuracy() && (getDistance(locationNew, location) > locationNew.getAccuracy() + location.getAccuracy())) // 6
 						     )
 					)     
 				{
@@ -159,6 +162,12 @@ public class GeolocService {
 		}
 	}
 	
+	/* return distance between two locations in meters */
+	static private double getDistance(Location location1, Location location2){
+		return GeoDistance.distance(location1.getLongitude(), location1.getLatitude(), 
+				location2.getLongitude(), location2.getLatitude(), DISTANCE_MODE_FILTER);
+	}
+	
 	/**
 	 * Get current location
 	 * 
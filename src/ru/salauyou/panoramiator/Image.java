@@ -1,14 +1,8 @@
 package ru.salauyou.panoramiator;
 
-import java.io.IOException;
-import java.net.URL;
 import java.util.Date;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.util.Log;
 
 /**
  * Type class to store image info and bitmap. When created by constructor, it doesn't start
@@ -17,8 +11,23 @@ import android.util.Log;
  */
 public class Image {
 	
-	static private ExecutorService downloader;
-	static private final int MAX_DOWNLOAD_THREADS = 5;
+	/**
+	 * Listener of bitmap status of images
+	 */
+	public interface Listener {
+		
+		/**
+		 * Invoked from the thread which changed status, when bitmap of the image becomes ready or is evicted
+		 * 
+		 * @param image
+		 * @param ready
+		 */
+		public void readyChanged(Image image, boolean ready);
+	}
+	
+	static private volatile Listener listener;
+	static private volatile DiskCache diskCache;
+	static private volatile CompressedCache compressedCache;
 	
 	final private Date date;
 	final private String url;
@@ -31,6 +40,9 @@ public class Image {
 	private volatile Bitmap bitmap;
 	private volatile boolean bitmapReady = false;
 	private volatile boolean bitmapRequested = false;
+	private volatile int failures = 0;			// failed downloads in a row
+	private volatile long retryTime = 0;		// ms, download is not started before
+	private volatile long failureTime = 0;		// ms, time of the last failed download
 
 	
 	/**
@@ -54,13 +66,82 @@ public class Image {
 		this.title = title;
 	}
 	
+	/**
+	 * Set disk cache shared by all images to look up photos before downloading and to store downloaded ones
+	 * 
+	 * @param cache		if null, photos are always downloaded
+	 */
+	static public void setDiskCache(DiskCache cache){
+		diskCache = cache;
+	}
+	
+	/**
+	 * Get disk cache shared by all images
+	 * 
+	 * @return	disk cache, or null if not set
+	 */
+	static public DiskCache getDiskCache(){
+		return diskCache;
+	}
+	
+	/**
+	 * Set listener of bitmap status shared by all images
+	 * 
+	 * @param listener	if null, status changes are not reported
+	 */
+	static public void setListener(Listener listener){
+		Image.listener = listener;
+	}
+	
+	/**
+	 * Get listener of bitmap status shared by all images
+	 * 
+	 * @return
+	 */
+	static public Listener getListener(){
+		return listener;
+	}
+	
+	/**
+	 * Set in-memory cache of encoded photos shared by all images, to decode bitmaps evicted from memory 
+	 * without reading disk or network
+	 * 
+	 * @param cache		if null, encoded photos are not kept in memory
+	 */
+	static public void setCompressedCache(CompressedCache cache){
+		compressedCache = cache;
+	}
+	
+	/**
+	 * Get in-memory cache of encoded photos shared by all images
+	 * 
+	 * @return	cache, or null if not set
+	 */
+	static public CompressedCache getCompressedCache(){
+		return compressedCache;
+	}
+	
+	/**
+	 * Get copy of the image info. Bitmap is not copied
+	 * 
+	 * @return
+	 */
+	public Image copy(){
+		return new Image(date, url, link, author, title, longitude, latitude);
+	}
+	
 	/**
 	 * Get bitmap of the image
 	 * 
 	 * @return	bitmap, or null if it not yet downloaded
 	 */
 	public Bitmap getBitmap(){
-		return bitmapReady ? bitmap : null;
+		Bitmap bitmap = this.bitmap;
+		if (bitmapReady && bitmap != null){
+			BitmapCache.getInstance().hit(this);
+			return bitmap;
+		}
+		return null;
 	}
 	
 	/**
@@ -139,29 +220,121 @@ public class Image {
 	 * Start download of bitmap 
 	 */
 	public void startDownload(){
-		if (!bitmapRequested){
-			if (downloader == null || downloader.isShutdown()){
-				downloader = Executors.newFixedThreadPool(MAX_DOWNLOAD_THREADS);
-			} 
-			downloader.execute(new Runnable(){
-				@Override
-				public void run(){
-					try {
-						URL urlConnection = new URL(url);
-						bitmap = BitmapFactory.decodeStream(urlConnection.openConnection().getInputStream());
-						if (bitmap != null){  
-							bitmapReady = true;
-						} else {
-							bitmapRequested = false;
-						}
-					} catch (IOException e) { 	
-						Log.d("debug", "Image by url:" + url + " cannot be downloaded");
-						bitmap = null;
-						bitmapRequested = false;			
-					} 
-				}
-			});
+		if (!bitmapRequested && isDownloadAllowed()){
 			bitmapRequested = true;
+			// bitmap may be already decoded for image with the same URL
+			Bitmap shared = BitmapCache.getInstance().share(this);
+			if (shared != null){
+				bitmap = shared;
+				bitmapReady = true;
+				readyChanged(true);
+				return;
+			}
+			DownloadScheduler.getInstance().submit(this);
+			BitmapCache.getInstance().miss();
 		}
 	}
+	
+	/**
+	 * Get download status of the image
+	 * 
+	 * @return	true, if all download attempts failed, false otherwise
+	 */
+	public boolean isFailed(){
+		return failures >= RetryPolicy.ATTEMPTS_MAX;
+	}
+	
+	/* check that download is not backing off after failure and its host is not suspended */
+	private boolean isDownloadAllowed(){
+		// failures during outage of the host don't count after it recovered
+		if (failures > 0 && RetryPolicy.getInstance().getRecoveryTime(url) > failureTime){
+			resetFailures();
+		}
+		if (retryTime != 0 && System.currentTimeMillis() < retryTime){
+			return false;
+		}
+		return !isFailed() && !RetryPolicy.getInstance().isOpen(url);
+	}
+	
+	/**
+	 * Cancel download of bitmap. If download is already running, its bitmap is not given to the image
+	 */
+	public void cancelDownload(){
+		if (DownloadScheduler.getInstance().cancel(this)){
+			bitmapRequested = false;
+		}
+	}
+	
+	/**
+	 * Set bitmap downloaded by {@code DownloadScheduler}
+	 * 
+	 * @param bitmap	bitmap, or null if download failed
+	 */
+	void setBitmap(Bitmap bitmap){
+		if (bitmap != null){
+			this.bitmap = BitmapCache.getInstance().put(this, bitmap);
+			failures = 0;
+			retryTime = 0;
+			bitmapReady = true;
+			readyChanged(true);
+		} else {
+			this.bitmap = null;
+			long delay = RetryPolicy.getInstance().getRetryDelay(++failures);
+			failureTime = System.currentTimeMillis();
+			retryTime = delay == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + delay;
+			bitmapRequested = false;
+		}
+	}
+	
+	/**
+	 * Forget failed downloads, so the image gets all attempts again
+	 */
+	void resetFailures(){
+		failures = 0;
+		retryTime = 0;
+	}
+	
+	/**
+	 * Postpone download which was not attempted by {@code DownloadScheduler}
+	 * 
+	 * @param time	ms, time before which download should not be started
+	 */
+	void deferDownload(long time){
+		retryTime = time;
+		bitmapRequested = false;
+	}
+	
+	/**
+	 * Drop bitmap evicted from cache, so it will be downloaded again by {@code startDownload()}
+	 * 
+	 * @return	dropped bitmap, or null if there was none
+	 */
+	Bitmap evict(){
+		Bitmap bitmapEvicted = bitmap;
+		boolean wasReady = bitmapReady;
+		bitmapReady = false;
+		bitmap = null;
+		bitmapRequested = false;
+		if (wasReady){
+			readyChanged(false);
+		}
+		return bitmapEvicted;
+	}
+	
+	private void readyChanged(boolean ready){
+		Listener listener = Image.listener;
+		if (listener != null){
+			listener.readyChanged(this, ready);
+		}
+	}
+	
+	/**
+	 * Drop bitmap of the image which is not displayed anymore and pass it to the pool for reuse,
+	 * if no other image shares it
+	 */
+	public void release(){
+		cancelDownload();
+		BitmapPool.getInstance().put(BitmapCache.getInstance().release(this));
+		evict();
+	}
 }
@@ -1,61 +1,151 @@
 package ru.salauyou.panoramiator;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import ru.salauyou.slideshowswipe.SlideShowSwipe;
 import android.graphics.Bitmap;
 import android.util.Log;
 
-/** 
+/**
  * ImageContainer class provides access to Panoramio photos that were taken near current location.
+ * Image list is published as immutable versioned snapshot together with cursor positions in it
+ * through atomic reference, so it may be read from any thread without locking. Every update
+ * of the list or the cursor replaces the reference.
  */
 
-public class ImageContainer implements GeolocService.Listener, ImageListUpdater.Receiver, SlideShowSwipe.BitmapContainer{
-
-	private List<Image> images;
+public class ImageContainer implements GeolocService.Listener, ImageListUpdater.Receiver, SlideShowSwipe.BitmapContainer,
+		BitmapCache.Cursor, Image.Listener{
+	
+	/**
+	 * Difference between image lists before and after update
+	 */
+	static public class Diff {
+		final public List<Image> added = new ArrayList<Image>();		// images not found in the previous list
+		final public List<Image> removed = new ArrayList<Image>();		// images of the previous list which are dropped
+		final public List<Image> kept = new ArrayList<Image>();			// images of the previous list which are reused
+		
+		@Override
+		public String toString(){
+			return added.size() + " added, " + removed.size() + " removed, " + kept.size() + " kept";
+		}
+	}
+	
+	
+	/* immutable image list with its index by URL and set of ready images */
+	static private class Snapshot {
+		final int version;
+		final List<Image> images;
+		final Map<String, Integer> positions;	// positions of images in the list, by URL
+		final ReadySet ready;					// positions of images which bitmaps are ready, updated in place
+		
+		Snapshot(int version, List<Image> images, Map<String, Integer> positions){
+			this.version = version;
+			this.images = Collections.unmodifiableList(images);
+			this.positions = positions;
+			this.ready = new ReadySet(images.size());
+		}
+		
+		/* get position of the image, or -1 if it is not in the list */
+		int indexOf(Image image){
+			Integer index = positions.get(image.getUrl());
+			return index != null && images.get(index) == image ? index : -1;
+		}
+	}
+	
+	
+	/* cursor positions within a snapshot */
+	static private class Position {
+		final Snapshot snapshot;
+		final Image imageCurrent, imagePrec;
+		final int indexCurrent, indexPrec;
+		
+		Position(Snapshot snapshot, Image imageCurrent, int indexCurrent, Image imagePrec, int indexPrec){
+			this.snapshot = snapshot;
+			this.imageCurrent = imageCurrent;
+			this.indexCurrent = indexCurrent;
+			this.imagePrec = imagePrec;
+			this.indexPrec = indexPrec;
+		}
+	}
+	
+	
+	static private final long PERIOD_DEFAULT = 1500;		// ms, the same as of slideshow
+	static private final int PREFETCH_AHEAD_MIN = 2;
+	static private final int PREFETCH_AHEAD_MAX = 16;
+	static private final int PREFETCH_BEHIND_MIN = 1;
+	static private final int PREFETCH_BEHIND_MAX = 4;
+	
+	final private AtomicReference<Position> position;
+	final private GeolocService geolocService;
+	final private Set<Bitmap> bitmapsHeld = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());	// pinned in pool
+	final private List<Image> imagesDropped = new ArrayList<Image>();	// dropped from the list while at cursor, guarded by itself
+	private volatile long period = PERIOD_DEFAULT;	// period of slideshow
 	private int qtyNeeded;		// quantity of images needed for the slideshow
 	private int idUpdater;			// current callback id of ImageListUpdater
 	private double _longitude;	// current geolocation coordinates
 	private double _latitude;
 	
-	private Image imageCurrent, imagePrec;
-	private int indexCurrent, indexPrec;
-	
 	
 	
 	/**
 	 * Default constructor
 	 */
 	public ImageContainer(){
-		images = new ArrayList<Image>();
-		Controller.getInstance().getGeolocService().addListener(this);
+		this(Controller.getInstance().getGeolocService());
 	}
-
 	
-		
 	/**
-	 * Get current image
+	 * Create container receiving location updates from given service
 	 * 
+	 * @param geolocService		if null, container is not subscribed to location updates, 
+	 * 							and location is considered enabled
+	 */
+	ImageContainer(GeolocService geolocService){
+		Snapshot snapshot = new Snapshot(0, new ArrayList<Image>(), new HashMap<String, Integer>());
+		position = new AtomicReference<Position>(new Position(snapshot, null, 0, null, 0));
+		this.geolocService = geolocService;
+		if (geolocService != null){
+			geolocService.addListener(this);
+		}
+		BitmapCache.getInstance().setCursor(this);
+		DownloadScheduler.getInstance().setCursor(this);
+		Image.setListener(this);
+	}
+	
+	
+	
+	/**
+	 * Get current image
+	 *
 	 * @return
 	 */
 	public Image getImageCurrent(){
-		Log.println(Log.DEBUG, "panoramiator", "Requested current image: " + indexPrec);
-		if (imageCurrent == null){
-			if (images != null && images.size() > 0){
-				if (images.get(0).isReady()){
-					imageCurrent = images.get(0);
-					indexCurrent = 0;
-					return imageCurrent;
-				} else {
-					images.get(0).startDownload();
-					return null;
-				}
-			} else {
+		while (true){
+			Position p = position.get();
+			Log.println(Log.DEBUG, "panoramiator", "Requested current image: " + p.indexPrec);
+			if (p.imageCurrent != null){
+				return p.imageCurrent;
+			}
+			List<Image> images = p.snapshot.images;
+			if (images.size() == 0){
 				return null;
 			}
-		} else {
-			return imageCurrent;
+			Image image = images.get(0);
+			if (!image.isReady()){
+				image.startDownload();
+				return null;
+			}
+			if (position.compareAndSet(p, new Position(p.snapshot, image, 0, p.imagePrec, p.indexPrec))){
+				return image;
+			}
 		}
 	}
 	
@@ -65,12 +155,16 @@ public class ImageContainer implements GeolocService.Listener, ImageListUpdater.
 	 * Set internal cursor position to start of the container
 	 */
 	public void reset(){
-		indexCurrent = indexPrec = 0;
+		Position p;
+		do {
+			p = position.get();
+		} while (!position.compareAndSet(p, new Position(p.snapshot, p.imageCurrent, 0, p.imagePrec, 0)));
+		cursorMoved();
 	}
-
+	
 	/**
 	 * Get quantity of images that was asked to download
-	 * 
+	 *
 	 * @return
 	 */
 	public int getQty(){
@@ -81,50 +175,67 @@ public class ImageContainer implements GeolocService.Listener, ImageListUpdater.
 	
 	/**
 	 * Get actual quantity of images in the container, both ready and non-ready
-	 * 
+	 *
 	 * @return
 	 */
 	public int getQtyActual(){
-		return images.size();
+		return position.get().snapshot.images.size();
 	}
 	
 	
 	
 	/**
 	 * Get quantity of images that have ready bitmap
-	 * 
+	 *
 	 * @return
 	 */
 	public int getQtyReady(){
-		int qtyReady = 0;
-		for (Image image : images){
-			if (image.isReady()){
-				qtyReady++;
-			}
-		}
-		return qtyReady;
+		return position.get().snapshot.ready.count();
+	}
+	
+	
+	
+	/**
+	 * Get images of the current list
+	 *
+	 * @return	unmodifiable list
+	 */
+	List<Image> getImages(){
+		return position.get().snapshot.images;
+	}
+	
+	
+	
+	/**
+	 * Get version of image list, incremented every time the list is replaced
+	 *
+	 * @return
+	 */
+	public int getVersion(){
+		return position.get().snapshot.version;
 	}
 	
 	
 	
     /**
      * Update desired quantity of images
-     * 
+     *
      * @param qty
      */
 	public void setQty(final int qty){
 		if (qty != qtyNeeded) {
-			if (qty > 0 && Controller.getInstance().getGeolocService().getLocationStatus()!= GeolocService.Status.DISABLED){
+			List<Image> images = position.get().snapshot.images;
+			if (qty > 0 && (geolocService == null || geolocService.getLocationStatus() != GeolocService.Status.DISABLED)){
 				qtyNeeded = qty;
 				if (qty > images.size()){
 					// if new quantity greater than existing, uploade new image list
-					new ImageListUpdater().getImagesPanoramio(this, ++idUpdater, _longitude, _latitude, qtyNeeded);
+					updateImages();
 				} else if (qty < images.size()){
 					// if new quantity less then existing, just rearrange image list
-					images = ImageListUpdater.getImagesNearestSorted(images, _longitude, _latitude, qtyNeeded);
+					installImages(ImageListUpdater.getImagesNearestSorted(new ArrayList<Image>(images), _longitude, _latitude, qtyNeeded));
 				}
 			} else {
-				images.clear();
+				installImages(new ArrayList<Image>());
 			}
 		}
 	}
@@ -140,129 +251,449 @@ public class ImageContainer implements GeolocService.Listener, ImageListUpdater.
 		_latitude = latitude;
 		// create and start imageListUpdater
 		if (provider != GeolocService.Status.DISABLED){
+			updateImages();
+		}
+	}
+	
+	
+	
+	/**
+	 * Take image list from index of photos already seen, or, if index doesn't cover
+	 * needed area, start imageListUpdater to get it from Panoramio
+	 */
+	private void updateImages(){
+		List<Image> imagesIndexed = ImageListUpdater.getPhotoIndex().getImagesNearest(_longitude, _latitude, qtyNeeded);
+		if (imagesIndexed != null){
+			Log.println(Log.DEBUG, "panoramiator", "Image list taken from index");
+			ImageListUpdater.cancelSearch();
+			receiveImageList(imagesIndexed, ++idUpdater);
+		} else {
 			new ImageListUpdater().getImagesPanoramio(this, ++idUpdater, _longitude, _latitude, qtyNeeded);
-		} 
+		}
 	}
 	
 	
 	
 	/**
-	 * C_ImageListUpdater.Receiver interface implementation
+	 * Set period of slideshow, used to choose how many images to prefetch
+	 *
+	 * @param period	period in ms. If {@code period <= 0}, is set to default (1500 ms)
 	 */
-	@Override 
-	public void receiveImageList(List<Image> imagesReceived, int id){
-		if (imagesReceived != null && id == idUpdater ){
-			// create new image list
-			List<Image> imagesNew = new ArrayList<Image>();
-			boolean foundExisting;
-			for (Image imageReceived : imagesReceived){    // iteration within received images
-				foundExisting = false;
-				for (Image imageExisting : images){        // iteration within existing images
-					if (imageExisting.getUrl().equals(imageReceived.getUrl())){  
-						// if image with the same url was found within existing images
-						// add it into new image list
-						imagesNew.add(imageExisting);
-						foundExisting = true;
-						break;
-					}
-				}
-				// if received image url was not found within existing images,
-				// push it into new image list
-				if (!foundExisting){
-					imagesNew.add(imageReceived);
+	public void setSlideShowPeriod(long period){
+		this.period = period <= 0 ? PERIOD_DEFAULT : period;
+	}
+	
+	
+	
+	/**
+	 * Get quantity of images ahead of cursor to download, so that every next image is ready
+	 * when it is shown: as many as are shown during measured time of download and decode, plus one
+	 *
+	 * @return
+	 */
+	public int getPrefetchAhead(){
+		DownloadScheduler.Metrics io = DownloadScheduler.getInstance().getMetricsIo();
+		DownloadScheduler.Metrics decode = DownloadScheduler.getInstance().getMetricsDecode();
+		long latency = io.waitTimeAverage + io.serviceTimeAverage + decode.waitTimeAverage + decode.serviceTimeAverage;
+		int ahead = (int)((latency + period - 1) / period) + 1;
+		return Math.max(PREFETCH_AHEAD_MIN, Math.min(PREFETCH_AHEAD_MAX, ahead));
+	}
+	
+	
+	
+	/**
+	 * Get quantity of images behind cursor to download, for the user swiping back
+	 *
+	 * @return
+	 */
+	public int getPrefetchBehind(){
+		return Math.max(PREFETCH_BEHIND_MIN, Math.min(PREFETCH_BEHIND_MAX, getPrefetchAhead() / 2));
+	}
+	
+	
+	
+	/**
+	 * Update downloads and decoded bitmaps after cursor was moved or image list was changed:
+	 * release dropped images the cursor has left, reorder queued downloads, evict bitmaps out 
+	 * of decoded window and request images within prefetch window around cursor
+	 */
+	private void cursorMoved(){
+		releaseDropped();
+		DownloadScheduler.getInstance().reprioritize();
+		BitmapCache.getInstance().trimWindow();
+		Position p = position.get();
+		List<Image> images = p.snapshot.images;
+		int size = images.size();
+		if (size == 0){
+			return;
+		}
+		int window = BitmapCache.getInstance().getWindow();
+		int ahead = Math.min(Math.max(getPrefetchAhead(), window), size - 1);
+		int behind = Math.min(Math.max(getPrefetchBehind(), window), size - 1 - ahead);
+		prefetch(images.get(p.indexCurrent), 0, window);
+		for (int d = 1; d <= ahead; d++){
+			prefetch(images.get((p.indexCurrent + d) % size), d, window);
+		}
+		for (int d = 1; d <= behind; d++){
+			prefetch(images.get(((p.indexCurrent - d) % size + size) % size), d, window);
+		}
+	}
+	
+	
+	
+	/* release images dropped from the list which are neither at cursor nor before it anymore. 
+	 * Images which returned to the list are just forgotten */
+	private void releaseDropped(){
+		Position p = position.get();
+		List<Image> released = new ArrayList<Image>();
+		synchronized (imagesDropped){
+			for (Iterator<Image> i = imagesDropped.iterator(); i.hasNext(); ){
+				Image image = i.next();
+				if (p.snapshot.indexOf(image) >= 0){
+					i.remove();
+				} else if (image != p.imageCurrent && image != p.imagePrec){
+					i.remove();
+					released.add(image);
 				}
 			}
-			images = imagesNew;		// replace images list with newly created list						
+		}
+		for (Image image : released){
+			image.release();
 		}
 	}
-
+	
+	
+	
+	/* request image at given distance from cursor. Out of decoded window, photo which is 
+	 * already in compressed cache is left to be decoded when cursor approaches it */
+	static private void prefetch(Image image, int distance, int window){
+		CompressedCache compressed = Image.getCompressedCache();
+		if (window > 0 && distance > window && compressed != null && compressed.contains(image.getUrl())){
+			return;
+		}
+		image.startDownload();
+	}
+	
+	
 	
 	/**
-	 * SlideShowSwipe.BitmapContainer implementation
+	 * C_ImageListUpdater.Receiver interface implementation
 	 */
 	@Override
-	public Bitmap getBitmapNext() {
-		if (images.size() == 0){
-			return null;
+	public void receiveImageList(List<Image> imagesReceived, int id){
+		if (imagesReceived != null && id == idUpdater ){
+			installImages(imagesReceived);
 		}
+	}
+	
+	
+	
+	/**
+	 * Replace image list by given one, reusing existing images with the same URL
+	 * and releasing bitmaps and cancelling downloads of dropped ones. Cursor stays 
+	 * at the same images, so the slideshow continues from where it was
+	 *
+	 * @param imagesReceived
+	 */
+	private void installImages(List<Image> imagesReceived){
+		Position p, pNew;
+		Diff diff;
+		do {
+			p = position.get();
+			diff = new Diff();
+			Snapshot snapshot = merge(p.snapshot, imagesReceived, diff);
+			pNew = new Position(snapshot,
+					p.imageCurrent, mapIndex(p.snapshot, snapshot, p.imageCurrent, p.indexCurrent),
+					p.imagePrec, mapIndex(p.snapshot, snapshot, p.imagePrec, p.indexPrec));
+		} while (!position.compareAndSet(p, pNew));
 		
-		int imageFound = -1;
+		// status changes reported while the set was filled went to the previous snapshot
+		fillReady(pNew.snapshot);
 		
-		// looking for next ready image in the list circularily
-		for (int i = indexCurrent + 1; imageFound < 0 && i != indexCurrent; i++) {
-			if (i >= images.size()){
-				i = 0;
+		// pass bitmaps of dropped images to the pool, except ones which may be still displayed:
+		// they are released when cursor leaves them
+		for (Image imageRemoved : diff.removed){
+			if (imageRemoved != pNew.imageCurrent && imageRemoved != pNew.imagePrec){
+				imageRemoved.release();
+			} else {
+				synchronized (imagesDropped){
+					imagesDropped.add(imageRemoved);
+				}
+			}
+		}
+		Log.println(Log.DEBUG, "panoramiator", "Image list version " + pNew.snapshot.version + " merged: " + diff 
+				+ ", cursor " + p.indexCurrent + " -> " + pNew.indexCurrent);
+		cursorMoved();
+	}
+	
+	
+	
+	/**
+	 * Build snapshot of new image list from received images, reusing images of existing 
+	 * snapshot with the same URL. Kept images stay in their existing order, and new ones
+	 * are inserted between them by upload date (newest first) in one merging pass, 
+	 * so the list is never sorted again as a whole
+	 *
+	 * @param snapshot	existing snapshot
+	 * @param imagesReceived	images sorted by upload date, newest first
+	 * @param diff		diff to fill
+	 * @return	new snapshot
+	 */
+	private Snapshot merge(Snapshot snapshot, List<Image> imagesReceived, Diff diff){
+		Map<String, Image> received = new HashMap<String, Image>(imagesReceived.size() * 2);
+		for (Image imageReceived : imagesReceived){
+			String url = imageReceived.getUrl();
+			if (received.containsKey(url)){
+				continue;	// duplicate
+			}
+			received.put(url, imageReceived);
+			if (!snapshot.positions.containsKey(url)){
+				diff.added.add(imageReceived);
 			}
-			if (images.get(i).isReady()){
-				imageFound = i;
+		}
+		for (Image imageExisting : snapshot.images){
+			if (received.containsKey(imageExisting.getUrl())){
+				// image received again gets new attempts, if it failed before
+				imageExisting.resetFailures();
+				diff.kept.add(imageExisting);
 			} else {
-				images.get(i).startDownload();
+				diff.removed.add(imageExisting);
 			}
 		}
 		
-		// if ready image was found, return it and move cursor to it
-		if (imageFound >= 0){
-			Log.println(Log.DEBUG, "debug", "Requested next image: " + imageFound);
-			indexPrec = indexCurrent;
-			indexCurrent = imageFound;
-			imagePrec = imageCurrent;
-			imageCurrent = images.get(imageFound);
-			return images.get(imageFound).getBitmap();
-		} else {
-			// else, set cursor to the start position
-			Log.println(Log.DEBUG, "debug", "Requested next image: not found");
-			indexPrec = 0;
-			return null;
+		// merge kept and added images, of equal dates the kept one goes first
+		List<Image> imagesNew = new ArrayList<Image>(diff.kept.size() + diff.added.size());
+		Map<String, Integer> positionsNew = new HashMap<String, Integer>(imagesReceived.size() * 2);
+		int k = 0, a = 0;
+		while (k < diff.kept.size() || a < diff.added.size()){
+			Image image;
+			if (a == diff.added.size() || (k < diff.kept.size() 
+					&& !diff.added.get(a).getDate().after(diff.kept.get(k).getDate()))){
+				image = diff.kept.get(k++);
+			} else {
+				image = diff.added.get(a++);
+			}
+			positionsNew.put(image.getUrl(), imagesNew.size());
+			imagesNew.add(image);
 		}
+		Snapshot snapshotNew = new Snapshot(snapshot.version + 1, imagesNew, positionsNew);
+		fillReady(snapshotNew);
+		return snapshotNew;
 	}
-
+	
+	
+	
+	/**
+	 * Get position of cursor in new snapshot: position of the same image, if it is kept, 
+	 * otherwise position of the nearest kept image before it, so moving forward continues 
+	 * with images which followed it or were inserted after it
+	 *
+	 * @param snapshotOld
+	 * @param snapshotNew
+	 * @param image		image at cursor, may be null
+	 * @param indexOld	position of cursor in old snapshot
+	 * @return	position in new snapshot
+	 */
+	static private int mapIndex(Snapshot snapshotOld, Snapshot snapshotNew, Image image, int indexOld){
+		int sizeOld = snapshotOld.images.size();
+		int sizeNew = snapshotNew.images.size();
+		if (image == null || sizeNew == 0){
+			return 0;
+		}
+		int index = snapshotNew.indexOf(image);
+		if (index >= 0){
+			return index;
+		}
+		for (int d = 1; d < sizeOld; d++){
+			index = snapshotNew.indexOf(snapshotOld.images.get(((indexOld - d) % sizeOld + sizeOld) % sizeOld));
+			if (index >= 0){
+				return index;
+			}
+		}
+		// nothing is kept, so the next image is the first one
+		return sizeNew - 1;
+	}
+	
+	
+	
+	/* bring ready set of the snapshot in line with status of its images */
+	static private void fillReady(Snapshot snapshot){
+		for (int i = 0; i < snapshot.images.size(); i++){
+			updateReady(snapshot, i);
+		}
+	}
+	
+	
+	
+	/* set ready bit of the image to its status. Status is read again after the bit is written, 
+	 * so a concurrent change of status reported in between is never overwritten */
+	static private void updateReady(Snapshot snapshot, int index){
+		Image image = snapshot.images.get(index);
+		boolean isReady;
+		do {
+			isReady = image.isReady();
+			snapshot.ready.set(index, isReady);
+		} while (image.isReady() != isReady);
+	}
+	
+	
+	/**
+	 * SlideShowSwipe.BitmapContainer implementation
+	 */
+	@Override
+	public Bitmap getBitmapNext() {
+		return moveToReady(true);
+	}
+	
 	
 	
 	@Override
 	public Bitmap getBitmapPrevious() {
-		if (images.size() == 0){
-			return null;
-		}
-		
-		int imageFound = -1;
-		
-		for (int i = indexCurrent - 1; imageFound < 0 && i != indexCurrent; i--) {
-			if (i < 0){
-				i = images.size() - 1;
+		return moveToReady(false);
+	}
+	
+	
+	
+	/**
+	 * Move cursor to the nearest image which bitmap is ready, in given direction around the list,
+	 * and request download of images passed over
+	 *
+	 * @param forward
+	 * @return	bitmap of found image, or null if no other image is ready
+	 */
+	private Bitmap moveToReady(boolean forward){
+		while (true){
+			Position p = position.get();
+			List<Image> images = p.snapshot.images;
+			ReadySet ready = p.snapshot.ready;
+			int size = images.size();
+			if (size == 0){
+				return null;
 			}
-			if (images.get(i).isReady()){
-				imageFound = i;
+			
+			int imageFound;
+			while (true){
+				imageFound = forward ? ready.nextSetCircular(p.indexCurrent) : ready.previousSetCircular(p.indexCurrent);
+				if (imageFound < 0 || images.get(imageFound).isReady()){
+					break;
+				}
+				// bitmap was evicted after the set was read
+				updateReady(p.snapshot, imageFound);
+			}
+			
+			// request images between cursor and found one
+			int passed = imageFound < 0 ? size - 1 : (forward ? imageFound - p.indexCurrent : p.indexCurrent - imageFound);
+			passed = (passed % size + size) % size;
+			for (int d = 1; d <= passed; d++){
+				images.get(((forward ? p.indexCurrent + d : p.indexCurrent - d) % size + size) % size).startDownload();
+			}
+			
+			// if ready image was found, return it and move cursor to it
+			if (imageFound >= 0){
+				Image image = images.get(imageFound);
+				if (!position.compareAndSet(p, new Position(p.snapshot, image, imageFound, p.imageCurrent, p.indexCurrent))){
+					continue;	// list or cursor was changed meanwhile
+				}
+				Log.println(Log.DEBUG, "debug", "Requested " + (forward ? "next" : "previous") + " image: " + imageFound);
+				cursorMoved();
+				return hold(image.getBitmap());
 			} else {
-				images.get(i).startDownload();
+				// else, set cursor to the start position
+				Log.println(Log.DEBUG, "debug", "Requested " + (forward ? "next" : "previous") + " image: not found");
+				if (!position.compareAndSet(p, new Position(p.snapshot, p.imageCurrent, p.indexCurrent, p.imagePrec, 0))){
+					continue;
+				}
+				return null;
 			}
 		}
-		if (imageFound >= 0){
-			Log.println(Log.DEBUG, "debug", "Requested previous image: " + imageFound);
-			indexPrec = indexCurrent;
-			indexCurrent = imageFound;
-			imagePrec = imageCurrent;
-			imageCurrent = images.get(imageFound);
-			return images.get(imageFound).getBitmap();
-		} else {
-			// else, set cursor to the start position
-			Log.println(Log.DEBUG, "debug", "Requested previous image: not found");
-			indexPrec = 0;
-			return null;
-		}
 	}
-
+	
 	
 	
 	@Override
 	public Bitmap getBitmapCurrent() {
-		return getImageCurrent() == null ? null : getImageCurrent().getBitmap();
+		Image image = getImageCurrent();
+		return image == null ? null : hold(image.getBitmap());
 	}
-
+	
+	
+	
+	/* pin bitmap given to the view, so it is not reused for decoding until the view releases it */
+	private Bitmap hold(Bitmap bitmap){
+		if (bitmap != null){
+			synchronized (bitmapsHeld){
+				if (bitmapsHeld.add(bitmap)){
+					BitmapPool.getInstance().pin(bitmap);
+				}
+			}
+		}
+		return bitmap;
+	}
+	
+	
+	
+	@Override
+	public void setBitmapsHeld(Bitmap front, Bitmap back, Bitmap preceding) {
+		synchronized (bitmapsHeld){
+			for (Iterator<Bitmap> i = bitmapsHeld.iterator(); i.hasNext(); ){
+				Bitmap bitmap = i.next();
+				if (bitmap != front && bitmap != back && bitmap != preceding){
+					i.remove();
+					BitmapPool.getInstance().unpin(bitmap);
+				}
+			}
+		}
+	}
+	
 	
 	
 	@Override
 	public void undoGetBitmap() {
-		imageCurrent = imagePrec;
-		indexCurrent = indexPrec;
+		Position p;
+		do {
+			p = position.get();
+		} while (!position.compareAndSet(p, new Position(p.snapshot, p.imagePrec, p.indexPrec, p.imagePrec, p.indexPrec)));
+		cursorMoved();
+	}
+	
+	
+	
+	@Override
+	public void setBitmapSize(int width, int height) {
+		BitmapDecoder.setTargetSize(width, height);
+	}
+	
+	
+	
+	/**
+	 * BitmapCache.Cursor implementation
+	 */
+	@Override
+	public int getDistance(Image image) {
+		Position p = position.get();
+		// images at cursor and before it may be displayed, even if they were dropped from the list
+		if (image == p.imageCurrent || image == p.imagePrec){
+			return 0;
+		}
+		int index = p.snapshot.indexOf(image);
+		if (index < 0){
+			return Integer.MAX_VALUE;
+		}
+		int distance = Math.abs(index - p.indexCurrent);
+		return Math.min(distance, p.snapshot.images.size() - distance);
+	}
+	
+	
+	
+	/**
+	 * Image.Listener implementation
+	 */
+	@Override
+	public void readyChanged(Image image, boolean isReady) {
+		Snapshot snapshot = position.get().snapshot;
+		int index = snapshot.indexOf(image);
+		if (index >= 0){
+			updateReady(snapshot, index);
+		}
 	}
 }
@@ -1,22 +1,22 @@
 package ru.salauyou.panoramiator;
 
-import java.text.SimpleDateFormat;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.util.EntityUtils;
-import org.json.JSONArray;
-import org.json.JSONObject;
 
-import android.location.Location;
-import android.location.LocationManager;
-import android.net.http.AndroidHttpClient;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
@@ -45,26 +45,168 @@ public class ImageListUpdater {
 	}
 	
 	
-	// making Panoramio search variables static to make them accessible across instances
-	private static volatile double _latitudeDelta = 0.01; // ~ 1 km
+	// Panoramio search interval used when nothing was learned yet
 	private final static double DELTA_MIN = 0.0001; // ~ 10 meters 
-	private static volatile double _deltaL = DELTA_MIN;
-	private static volatile double _deltaR = _latitudeDelta;
+	private final static double DELTA_L_DEFAULT = DELTA_MIN;
+	private final static double DELTA_R_DEFAULT = 0.01; // ~ 1 km
+	private final static double DELTA_MAX = 2.0; // ~ 220 km
+	private final static int BRACKET_ROUNDS_MAX = 16; // rounds to find both bounds of search interval
+	private final static double METERS_PER_DEGREE = 111195.0; // of latitude
 	
-	// property to store current 'id' for getImagesPanoramio method
-	// we'll use it when server is requested, to check whether last called 'id' is equal to current
-	private static volatile int idGetImagesPanoramio; 
+	// distances are only compared while ranking images, so accuracy of fast mode is enough
+	private final static GeoDistance.Mode DISTANCE_MODE_RANKING = GeoDistance.Mode.FAST;
+	
+	// learned search intervals shared across instances
+	private static volatile RadiusMemory radiusMemory = new RadiusMemory();
+	
+	// HTTP client shared across instances to keep connections alive
+	private static volatile ApiClient apiClient;
+	
+	// index of all photos seen during the session
+	private static volatile PhotoIndex photoIndex = new PhotoIndex();
+	
+	// photos fetched per tile, shared across instances
+	private static volatile TileCache tileCache = new TileCache();
+	
+	// quantity of 'has_more' probes sent to Panoramio simultaneously during one search round.
+	// 1 means plain sequential binary search
+	private final static int PROBE_FAN_OUT_DEFAULT = 4;
+	private final static int PROBE_FAN_OUT_MAX = 8;
+	private static volatile int probeFanOut = PROBE_FAN_OUT_DEFAULT;
+	private final static long PROBER_KEEP_ALIVE = 30000; // ms
+	static private ExecutorService prober;
+	
+	// single thread running the latest search
+	static private final LatestTaskExecutor searcher = new LatestTaskExecutor("Panoramio search");
 
 	ArrayList<Image> images = new ArrayList<Image>();
 	
+	/**
+	 * Set quantity of 'has_more' probes to be sent to Panoramio simultaneously. 
+	 * Every search round narrows search interval by factor of {@code (fanOut + 1)}
+	 * 
+	 * @param fanOut	quantity of parallel probes. If {@code fanOut < 1}, is set to 1 (sequential binary search),
+	 * 					if exceeds 8, is set to 8
+	 */
+	static public void setProbeFanOut(int fanOut){
+		probeFanOut = Math.max(1, Math.min(PROBE_FAN_OUT_MAX, fanOut));
+	}
+	
+	/**
+	 * Get quantity of 'has_more' probes sent to Panoramio simultaneously
+	 * 
+	 * @return
+	 */
+	static public int getProbeFanOut(){
+		return probeFanOut;
+	}
+	
+	
+	/**
+	 * Set store of learned search intervals to be used by all instances
+	 * 
+	 * @param memory
+	 * @throws NullPointerException
+	 */
+	static public void setRadiusMemory(RadiusMemory memory) throws NullPointerException {
+		if (memory == null)
+			throw new NullPointerException("Radius memory is null");
+		radiusMemory = memory;
+	}
+	
+	/**
+	 * Get store of learned search intervals used by all instances
+	 * 
+	 * @return
+	 */
+	static public RadiusMemory getRadiusMemory(){
+		return radiusMemory;
+	}
+	
+	
+	/**
+	 * Set HTTP client to be used by all instances for Panoramio requests
+	 * 
+	 * @param client
+	 * @throws NullPointerException
+	 */
+	static synchronized public void setApiClient(ApiClient client) throws NullPointerException {
+		if (client == null)
+			throw new NullPointerException("Client is null");
+		apiClient = client;
+	}
+	
+	/**
+	 * Get HTTP client used for Panoramio requests. If it was not set, default one is created
+	 * 
+	 * @return
+	 */
+	static synchronized public ApiClient getApiClient(){
+		if (apiClient == null){
+			apiClient = new ApiClient();
+		}
+		return apiClient;
+	}
+	
+	
+	/**
+	 * Set index of photos to be filled by all instances
+	 * 
+	 * @param index
+	 * @throws NullPointerException
+	 */
+	static public void setPhotoIndex(PhotoIndex index) throws NullPointerException {
+		if (index == null)
+			throw new NullPointerException("Photo index is null");
+		photoIndex = index;
+	}
+	
+	/**
+	 * Get index of all photos received from Panoramio during the session
+	 * 
+	 * @return
+	 */
+	static public PhotoIndex getPhotoIndex(){
+		return photoIndex;
+	}
+	
+	
+	/**
+	 * Set cache of tiles to be used by all instances
+	 * 
+	 * @param cache
+	 * @throws NullPointerException
+	 */
+	static public void setTileCache(TileCache cache) throws NullPointerException {
+		if (cache == null)
+			throw new NullPointerException("Tile cache is null");
+		tileCache = cache;
+	}
+	
+	/**
+	 * Get cache of tiles used by all instances
+	 * 
+	 * @return
+	 */
+	static public TileCache getTileCache(){
+		return tileCache;
+	}
+	
+	
+	/**
+	 * Cancel running search, if any, so that its image list is not returned
+	 */
+	static public void cancelSearch(){
+		searcher.cancelAll();
+	}
+	
+	
 	/* Method to download and process image list from Panoramio.
-	 * Runs in separate thread, returns result via I_ImageListReceiver.
+	 * Runs in search thread, returns result via I_ImageListReceiver. Search started earlier 
+	 * by any instance is cancelled, and is not returned.
 	 */
 	public void getImagesPanoramio(final Receiver receiver, final int id, final double longitude, final double latitude, final int qty){
 				
-		// set current 'id' to the last called to prevent needless IO methods calls
-		idGetImagesPanoramio = id;
-		
 		// proposition: '2*qty' is enough to accurately get needed 'qty' of images around given location
 		// if 'qty' is small, take fixed 'qtyToReceive' to proceed Panoramio search faster
 		final int qtyToReceive = (qty <= 15) ? 30 : (qty * 2); 
@@ -79,163 +221,261 @@ public class ImageListUpdater {
 			}
 		};
 			
-		// create a thread to perform download and processing
-		Thread threadGetImages = new Thread() {
+		// create a task to perform download and processing
+		LatestTaskExecutor.Task taskGetImages = new LatestTaskExecutor.Task() {
 			
-			/* method to return json from requested URI */
-			JSONObject getJson(final String uri) throws Throwable {
-				// check if method uses current 'id'
-				if (id != idGetImagesPanoramio){
-					// if not, skip processing and throw an exception to stop the whole thread
-					Log.println(Log.DEBUG, "panoramiator", "Panoramio request skipped due to unproper ID");
-					throw new Throwable();
-				}
-				Log.println(Log.DEBUG, "panoramiator", "Panoramio request executed");
-				JSONObject response = null;
-				AndroidHttpClient httpClient = AndroidHttpClient.newInstance("Android");
-				try {
-					HttpResponse httpResponse = httpClient.execute(new HttpGet(uri));
-					// if everything is OK with response
-					if (httpResponse.getStatusLine().getStatusCode() == 200){
-						HttpEntity httpEntity = httpResponse.getEntity();
-						// create response as JSON returned from Panoramio
-						response = new JSONObject(EntityUtils.toString(httpEntity));
+			// set when the search is superseded by newer one
+			volatile boolean cancelled = false;
+			// requests being executed, to be aborted on cancel
+			final List<HttpGet> requests = new ArrayList<HttpGet>();
+			
+			@Override
+			public void cancel(){
+				synchronized (requests){
+					cancelled = true;
+					for (HttpGet request : requests){
+						request.abort();
 					}
-					httpClient.close();
-				} catch (Throwable e){
-					httpClient.close();
-					throw e;
-				} 
-				if (response == null){
-					throw new Throwable();
-				} else {
-					return response;
 				}
 			}
 			
-			
-			/* method to return if there are more than 'qtyRequired' images in Panoramio around current location */
-			boolean panoramioHasMore(final double _delta) throws Throwable {
+			/* method to return response entity from requested URI, it must be consumed after reading */
+			HttpEntity getEntity(final String uri) throws IOException {
+				HttpGet request = new HttpGet(uri);
+				synchronized (requests){
+					if (cancelled){
+						// aborted request fails at once
+						request.abort();
+					}
+					requests.add(request);
+				}
 				try {
-					// get delta for longitude to be similar in meters to delta for latitude
-					double _deltaLongitude = getLongitudeDelta(latitude, _delta);
-					String httpGetUri = "http://www.panoramio.com/map/get_panoramas.php?set=full"
-							+ "&from=" + String.valueOf(qtyToReceive)
-							+ "&to=" + String.valueOf(qtyToReceive) 
-							+ "&minx=" + String.valueOf(longitude - _deltaLongitude) 
-							+ "&miny=" + String.valueOf(latitude - _delta)
-							+ "&maxx=" + String.valueOf(longitude + _deltaLongitude)
-							+ "&maxy=" + String.valueOf(latitude + _delta)
-							+ "&size=medium&mapfilter=false";
-					// receive json from panoramio
-					JSONObject response = getJson(httpGetUri);
-					if (response.has("has_more")){
-						if (response.get("has_more").toString().equals("true")){
-							return true;
-						} else {
-							return false;
+					Log.println(Log.DEBUG, "panoramiator", "Panoramio request executed");
+					HttpResponse httpResponse = getApiClient().execute(request);
+					HttpEntity httpEntity = httpResponse.getEntity();
+					// if something is wrong with response, consume it to let connection be reused
+					if (httpResponse.getStatusLine().getStatusCode() != 200 || httpEntity == null){
+						if (httpEntity != null){
+							httpEntity.consumeContent();
 						}
-					} else {
-						throw new Exception();
+						throw new IOException("Panoramio responded " + httpResponse.getStatusLine().getStatusCode());
+					}
+					return httpEntity;
+				} finally {
+					synchronized (requests){
+						requests.remove(request);
 					}
-				} catch (Throwable e) {
-					throw e;
 				}
-			};
+			}
 			
-			/* method to get images from Panoramio */
-			void panoramioGetImages(final double _delta) throws Throwable{
+			
+			/* method to return if there are more than 'qtyRequired' images in Panoramio around current location */
+			boolean panoramioHasMore(final double _delta) throws IOException {
 				// get delta for longitude to be similar in meters to delta for latitude
 				double _deltaLongitude = getLongitudeDelta(latitude, _delta);
-				String httpGetUri = "http://www.panoramio.com/map/get_panoramas.php?set=full"
-						+ "&from=0&to=" + String.valueOf(qtyToReceive) 
+				String httpGetUri = getApiClient().getBaseUrl() + "get_panoramas.php?set=full"
+						+ "&from=" + String.valueOf(qtyToReceive)
+						+ "&to=" + String.valueOf(qtyToReceive) 
 						+ "&minx=" + String.valueOf(longitude - _deltaLongitude) 
 						+ "&miny=" + String.valueOf(latitude - _delta)
 						+ "&maxx=" + String.valueOf(longitude + _deltaLongitude)
 						+ "&maxy=" + String.valueOf(latitude + _delta)
 						+ "&size=medium&mapfilter=false";
+				// read only 'has_more' field, the rest is skipped by consuming
+				HttpEntity httpEntity = getEntity(httpGetUri);
 				try {
-					Log.println(Log.DEBUG, "panoramiator", httpGetUri);
-					// receive json
-					JSONObject response = getJson(httpGetUri);
-					if (response.has("photos")){
-						JSONArray imagesJson = response.getJSONArray("photos");
-						// there is no built-in iterator in JSON Array, so iterate on it using 'index'
-						int imagesQty = imagesJson.length();
-						for (int index = 0; index < imagesQty; index++){
-							// extract next image object...
-							JSONObject imageJson = (JSONObject)imagesJson.get(index);
-							// ... and add it into 'images' list
-							images.add(new Image(new SimpleDateFormat("dd MMMM yyyy", Locale.US).parse(imageJson.getString("upload_date")),
-									imageJson.getString("photo_file_url"), imageJson.getString("photo_url"),
-									imageJson.getString("owner_name"), imageJson.getString("photo_title"),
-									imageJson.getDouble("longitude"), imageJson.getDouble("latitude")));
+					return PanoramioParser.readHasMore(httpEntity.getContent());
+				} finally {
+					httpEntity.consumeContent();
+				}
+			};
+			
+			/* method to get images within bounding box from Panoramio, returns if there are more */
+			boolean panoramioGetImages(final double minx, final double miny, final double maxx, final double maxy, 
+					final int qtyMax, final List<Image> imagesFetched) throws IOException {
+				String httpGetUri = getApiClient().getBaseUrl() + "get_panoramas.php?set=full"
+						+ "&from=0&to=" + String.valueOf(qtyMax) 
+						+ "&minx=" + String.valueOf(minx) 
+						+ "&miny=" + String.valueOf(miny)
+						+ "&maxx=" + String.valueOf(maxx)
+						+ "&maxy=" + String.valueOf(maxy)
+						+ "&size=medium&mapfilter=false";
+				Log.println(Log.DEBUG, "panoramiator", httpGetUri);
+				// parse images right from response stream
+				HttpEntity httpEntity = getEntity(httpGetUri);
+				try {
+					return PanoramioParser.readImages(httpEntity.getContent(), imagesFetched);
+				} finally {
+					httpEntity.consumeContent();
+				}
+			}
+			
+			/* method to send several 'has_more' probes simultaneously, returns results in the same order as deltas */
+			boolean[] panoramioHasMore(final double[] deltas) throws IOException, InterruptedException {
+				boolean[] results = new boolean[deltas.length];
+				if (deltas.length == 1){
+					results[0] = panoramioHasMore(deltas[0]);
+					return results;
+				}
+				List<Callable<Boolean>> probes = new ArrayList<Callable<Boolean>>();
+				for (final double d : deltas){
+					probes.add(new Callable<Boolean>(){
+						@Override
+						public Boolean call() throws IOException {
+							return panoramioHasMore(d);
+						}
+					});
+				}
+				List<Future<Boolean>> futures = getProber().invokeAll(probes);
+				for (int i = 0; i < deltas.length; i++){
+					try {
+						results[i] = futures.get(i).get();
+					} catch (ExecutionException e){
+						if (e.getCause() instanceof IOException){
+							throw (IOException)e.getCause();
+						} else {
+							throw new IOException(e.getCause().toString());
 						}
-					} else {
-						throw new Exception();
 					}
-				} catch (Throwable e){
-					throw e;
 				}
-			
+				return results;
 			}
 			
 			@Override
 			public void run(){
-				// copy static deltas into local fields
-				double delta = _latitudeDelta;
-				double deltaR = _deltaR;
-				double deltaL = _deltaL;
+				// start from interval learned for this area, if any
+				final RadiusMemory memory = radiusMemory;
+				final PhotoIndex index = photoIndex;
+				RadiusMemory.Interval learned = memory.get(longitude, latitude, qty);
+				double deltaL = (learned == null) ? DELTA_L_DEFAULT : clampDelta(learned.deltaL);
+				double deltaR = (learned == null) ? DELTA_R_DEFAULT : clampDelta(learned.deltaR);
+				int k = probeFanOut;
+				
+				// 'lo' is the greatest delta known to have not more than 'qtyToReceive' images,
+				// 'hi' is the least delta known to have more; negative means not found yet
+				double lo = -1, hi = -1;
 				
 				try {	
-					// start binary search of 'delta' that will give ~'qtyRequired' images on Panoramio
-					// adjust left delta
-					while (panoramioHasMore(deltaL)){
-						deltaL *= 0.5;
+					// first round: probe both learned bounds and spread the rest between them.
+					// If learned interval is already tight, its bounds are only to be verified
+					double[] deltas;
+					if (k == 1){
+						deltas = new double[]{ deltaL };
+					} else if (deltaR - deltaL < DELTA_MIN){
+						deltas = new double[]{ deltaL, deltaR };
+					} else {
+						deltas = getDeltasGeometric(deltaL, deltaR, k);
 					}
-					// adjust right delta
-					while (!panoramioHasMore(deltaR)){
-						deltaR *= 2.0;
+					boolean[] hasMore = panoramioHasMore(deltas);
+					
+					// adjust bounds until both are found, expanding by factor of 2 per probe
+					// within [DELTA_MIN, DELTA_MAX]
+					int rounds = 0;
+					while (!cancelled){
+						for (int i = 0; i < deltas.length; i++){
+							if (hasMore[i]){
+								hi = (hi < 0) ? deltas[i] : Math.min(hi, deltas[i]);
+							} else {
+								lo = Math.max(lo, deltas[i]);
+							}
+						}
+						// Panoramio counts are not always consistent, so forget left bound if it overlaps
+						if (lo >= hi && hi > 0){
+							lo = -1;
+						}
+						if (lo > 0 && hi > 0){
+							break;
+						}
+						// if the range is exhausted, or Panoramio keeps answering inconsistently, 
+						// take the missing bound from the range
+						if ((lo < 0 && hi <= DELTA_MIN) || (hi < 0 && lo >= DELTA_MAX) || ++rounds >= BRACKET_ROUNDS_MAX){
+							lo = (lo < 0) ? 0 : lo;
+							hi = (hi < 0) ? DELTA_MAX : hi;
+							break;
+						}
+						double base = (lo < 0) ? Math.min(hi, deltaL * 2.0) : Math.max(lo, deltaR / 2.0);
+						int n = 0;
+						deltas = new double[k];
+						while (n < k && (lo < 0 ? base > DELTA_MIN : base < DELTA_MAX)){
+							base = clampDelta((lo < 0) ? base * 0.5 : base * 2.0);
+							deltas[n++] = base;
+						}
+						if (n < k){
+							double[] d = new double[n];
+							System.arraycopy(deltas, 0, d, 0, n);
+							deltas = d;
+						}
+						hasMore = panoramioHasMore(deltas);
 					}
 					
-					// proceed binary search
-					delta = (deltaR - deltaL)/2.0;
-					while ((deltaR - deltaL)>= DELTA_MIN){
-						if (panoramioHasMore(delta)){
-							deltaR = delta;
-						} else {
-							deltaL = delta;
+					// proceed k-ary search: every round splits interval into 'k + 1' equal parts
+					while (!cancelled && (hi - lo) >= DELTA_MIN){
+						deltas = new double[k];
+						for (int i = 0; i < k; i++){
+							deltas[i] = lo + (hi - lo) * (i + 1) / (k + 1);
+						}
+						hasMore = panoramioHasMore(deltas);
+						// new interval is between the last 'false' and the first 'true' probe
+						int i = 0;
+						while (i < k && !hasMore[i]){
+							i++;
 						}
-						delta = (deltaR + deltaL)/2.0;
+						double loNew = (i == 0) ? lo : deltas[i - 1];
+						double hiNew = (i == k) ? hi : deltas[i];
+						lo = loNew;
+						hi = hiNew;
 					}
 					
-					// set static delta fields for further use
-					delta = deltaR;
-					_latitudeDelta = delta;
-					_deltaR = deltaR;
-					_deltaL = deltaL;
+					if (cancelled){
+						Log.println(Log.DEBUG, "panoramiator", "Panoramio search cancelled");
+						return;
+					}
+					
+					// remember interval for further searches in this area
+					memory.put(longitude, latitude, qty, new RadiusMemory.Interval(lo, hi));
 					
-					//  get images list from Panoramio
-					panoramioGetImages(delta);
+					//  get images list from Panoramio, combining cached tiles with fetched ones
+					boolean tilesHaveMore = tileCache.getImages(longitude, latitude, hi, qtyToReceive, new TileCache.Fetcher(){
+						@Override
+						public boolean fetch(double minLongitude, double minLatitude, double maxLongitude, double maxLatitude, 
+								int qtyMax, List<Image> imagesFetched) throws IOException {
+							return panoramioGetImages(minLongitude, minLatitude, maxLongitude, maxLatitude, qtyMax, imagesFetched);
+						}
+					}, getProber(), images);
+					// and keep them in index. Panoramio returns the most popular photos of a tile first,
+					// so the circle within 'lo' is covered only if every tile was fetched completely
+					index.add(images, longitude, latitude, tilesHaveMore ? 0 : lo * METERS_PER_DEGREE);
 					// and sort them
 					images = (ArrayList<Image>)ImageListUpdater.getImagesNearestSorted(images, longitude, latitude, qty);
 					
-				} catch (Throwable e) {	
+				} catch (IOException e) {
+					// requests of cancelled search are aborted, so they fail
+					Log.println(Log.DEBUG, "panoramiator", cancelled ? "Panoramio search cancelled" : "Panoramio search failed: " + e);
+					images.clear();
+				} catch (InterruptedException e){
 					images.clear();
+					// keep the flag for the worker thread
+					Thread.currentThread().interrupt();
 				}
-				finally {
+				if (!cancelled){
 					handlerGetImages.sendMessage(new Message());
 				}
 			}
 		};
 		
-		// start the thread	
-		threadGetImages.start();
+		// run the task, cancelling the previous one
+		searcher.submit(taskGetImages);
 	}
 	
 	
 	/* method to return needed quantity of images, nearest to given location and sorted by upload date, from the given list */
 	static public List<Image> getImagesNearestSorted(List<Image> imagesInput, final double longitude, final double latitude, final int qty){
+		return getImagesNearestSorted(imagesInput, longitude, latitude, qty, DISTANCE_MODE_RANKING);
+	}
+	
+	/* the same, using given mode of distance calculation */
+	static public List<Image> getImagesNearestSorted(List<Image> imagesInput, final double longitude, final double latitude, final int qty, 
+			final GeoDistance.Mode mode){
 		
 		// custom comparator for upload date sorting
 		Comparator<Image> comparatorDate = new Comparator<Image>(){
@@ -249,37 +489,114 @@ public class ImageListUpdater {
 			}
 		};
 	
-		// custom comparator for distance sorting
-		Comparator<Image> comparatorDistance = new Comparator<Image>(){
-			@Override
-			public int compare(Image image1, Image image2){
-				Location location1 = new Location(LocationManager.GPS_PROVIDER);
-				Location location2 = new Location(LocationManager.GPS_PROVIDER);
-				Location location = new Location(LocationManager.GPS_PROVIDER);
-				location1.setLatitude(image1.getLatitude());
-				location1.setLongitude(image1.getLongitude());
-				location2.setLatitude(image2.getLatitude());
-				location2.setLongitude(image2.getLongitude());
-				location.setLatitude(latitude);
-				location.setLongitude(longitude);
-				// calculate difference of distances between current location and image locations
-				double difference = location.distanceTo(location1) - location.distanceTo(location2);
-				return difference == 0 ? 0 : (difference > 0 ? 1 : -1); 
-			}
-		};
-		
-		// if received list bigger than needed, sort images by location and get first 'qty' images
+		// if received list bigger than needed, get first 'qty' images nearest to location
 		if (imagesInput.size() > qty){
-			Collections.sort(imagesInput, comparatorDistance);
-			imagesInput.subList(qty, imagesInput.size()).clear();
+			int n = imagesInput.size();
+			int k = Math.max(qty, 0);
+			
+			// calculate distances once
+			double[] distances = new double[n];
+			for (int i = 0; i < n; i++){
+				Image image = imagesInput.get(i);
+				distances[i] = GeoDistance.distance(longitude, latitude, image.getLongitude(), image.getLatitude(), mode);
+			}
+			
+			// keep indexes of 'k' nearest images in max-heap, the farthest one is on top. 
+			// Of equally distant images, the earlier in the list is nearer, like in stable sort
+			int[] heap = new int[k];
+			int heapSize = 0;
+			for (int i = 0; i < n && k > 0; i++){
+				if (heapSize < k){
+					heap[heapSize++] = i;
+					siftUp(heap, heapSize - 1, distances);
+				} else if (distances[i] < distances[heap[0]]){
+					heap[0] = i;
+					siftDown(heap, heapSize, distances);
+				}
+			}
+			
+			// take images out of heap from the farthest to the nearest
+			Image[] nearest = new Image[k];
+			while (heapSize > 0){
+				nearest[heapSize - 1] = imagesInput.get(heap[0]);
+				heap[0] = heap[--heapSize];
+				siftDown(heap, heapSize, distances);
+			}
+			imagesInput.clear();
+			Collections.addAll(imagesInput, nearest);
 		}
 		// then sort images by upload date
 		Collections.sort(imagesInput, comparatorDate);
 		return imagesInput;
 	}
 	
+	/* return true if image at index 'i' is farther than at index 'j' */
+	static private boolean isFarther(int i, int j, double[] distances){
+		return distances[i] > distances[j] || (distances[i] == distances[j] && i > j);
+	}
+	
+	/* move heap element up until its parent is farther */
+	static private void siftUp(int[] heap, int pos, double[] distances){
+		while (pos > 0){
+			int parent = (pos - 1) / 2;
+			if (!isFarther(heap[pos], heap[parent], distances)){
+				break;
+			}
+			int t = heap[pos]; heap[pos] = heap[parent]; heap[parent] = t;
+			pos = parent;
+		}
+	}
+	
+	/* move top heap element down until its children are nearer */
+	static private void siftDown(int[] heap, int size, double[] distances){
+		int pos = 0;
+		while (true){
+			int child = pos * 2 + 1;
+			if (child >= size){
+				break;
+			}
+			if (child + 1 < size && isFarther(heap[child + 1], heap[child], distances)){
+				child++;
+			}
+			if (!isFarther(heap[child], heap[pos], distances)){
+				break;
+			}
+			int t = heap[pos]; heap[pos] = heap[child]; heap[child] = t;
+			pos = child;
+		}
+	}
+	
+	/* return executor to send parallel 'has_more' probes and tile requests. Not more than 
+	 * PROBE_FAN_OUT_MAX requests run at once, the rest wait in queue; idle threads stop */
+	static synchronized private ExecutorService getProber(){
+		if (prober == null){
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(PROBE_FAN_OUT_MAX, PROBE_FAN_OUT_MAX, 
+					PROBER_KEEP_ALIVE, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+			executor.allowCoreThreadTimeOut(true);
+			prober = executor;
+		}
+		return prober;
+	}
+	
+	/* return delta limited to search range */
+	static private double clampDelta(final double delta){
+		return Math.max(DELTA_MIN, Math.min(DELTA_MAX, delta));
+	}
+	
+	/* return 'qty' deltas spread geometrically from 'from' to 'to' inclusively */
+	static private double[] getDeltasGeometric(final double from, final double to, final int qty){
+		double[] deltas = new double[qty];
+		double ratio = Math.pow(to / from, 1.0 / (qty - 1));
+		deltas[0] = from;
+		for (int i = 1; i < qty - 1; i++){
+			deltas[i] = deltas[i - 1] * ratio;
+		}
+		deltas[qty - 1] = to;
+		return deltas;
+	}
+	
 	/* return latitude delta that is appx the same in meters as given longitude delta */
-	static private double getLongitudeDelta(final double latitude, final double latDelta){
+	static double getLongitudeDelta(final double latitude, final double latDelta){
 		return latDelta / Math.cos(latitude/180.0 * Math.PI);
 	}
 }
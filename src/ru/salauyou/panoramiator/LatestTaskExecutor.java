@@ -0,0 +1,118 @@
+package ru.salauyou.panoramiator;
+
+import android.util.Log;
+
+/**
+ * LatestTaskExecutor runs tasks one by one in single worker thread, keeping at most one task pending.
+ * Submitted task replaces pending one, which is never started then, and cancels running one, 
+ * so the latest submitted task is run as soon as possible.
+ */
+public class LatestTaskExecutor {
+
+	/**
+	 * Task that can be cancelled while running
+	 */
+	public interface Task extends Runnable {
+		
+		/**
+		 * Invoked from another thread when the task is superseded. Running task should
+		 * stop as soon as possible and not deliver its result
+		 */
+		void cancel();
+	}
+	
+	final private String name;
+	final private Object lock = new Object();
+	private Task pending;	// guarded by lock
+	private Task running;	// guarded by lock
+	private Thread worker;	// guarded by lock
+	
+	
+	/**
+	 * Create executor. Worker thread is started on first submit
+	 * 
+	 * @param name	name of worker thread
+	 */
+	public LatestTaskExecutor(String name){
+		this.name = name;
+	}
+	
+	
+	/**
+	 * Submit task to be run after the running one, replacing pending task if any
+	 * 
+	 * @param task
+	 * @throws NullPointerException
+	 */
+	public void submit(Task task) throws NullPointerException {
+		if (task == null)
+			throw new NullPointerException("Task is null");
+		synchronized (lock){
+			if (pending != null){
+				pending.cancel();
+				Log.println(Log.DEBUG, "panoramiator", "Pending task replaced");
+			}
+			pending = task;
+			if (running != null){
+				running.cancel();
+			}
+			if (worker == null){
+				worker = new Thread(new Runnable(){
+					@Override
+					public void run(){
+						work();
+					}
+				}, name);
+				worker.setDaemon(true);
+				worker.start();
+			} else {
+				lock.notify();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Cancel running task and drop pending one
+	 */
+	public void cancelAll(){
+		synchronized (lock){
+			if (pending != null){
+				pending.cancel();
+				pending = null;
+			}
+			if (running != null){
+				running.cancel();
+			}
+		}
+	}
+	
+	
+	/* worker loop: take pending task and run it */
+	private void work(){
+		while (true){
+			Task task;
+			synchronized (lock){
+				while (pending == null){
+					try {
+						lock.wait();
+					} catch (InterruptedException e){
+						// keep waiting, the worker lives as long as the process
+					}
+				}
+				task = pending;
+				pending = null;
+				running = task;
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e){
+				Log.d("debug", "Task failed: " + e);
+			} finally {
+				synchronized (lock){
+					running = null;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package ru.salauyou.panoramiator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+/**
+ * PanoramioParser reads responses of Panoramio {@code get_panoramas.php} straight from stream,
+ * without building the whole JSON tree in memory. Streams are not closed by the parser.
+ */
+public class PanoramioParser {
+	
+	// date parser is not thread safe, so every thread keeps its own
+	static private final ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>(){
+		@Override
+		protected SimpleDateFormat initialValue(){
+			return new SimpleDateFormat("dd MMMM yyyy", Locale.US);
+		}
+	};
+	
+	private PanoramioParser(){
+		// static methods only
+	}
+	
+	
+	/**
+	 * Read 'has_more' field of response. Reading stops right after the field is found, 
+	 * the rest of stream is left unread
+	 * 
+	 * @param in	response stream
+	 * @return	value of 'has_more' field
+	 * @throws IOException	if stream cannot be read or the field is absent
+	 */
+	static public boolean readHasMore(InputStream in) throws IOException {
+		JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+		reader.beginObject();
+		while (reader.hasNext()){
+			if (reader.nextName().equals("has_more")){
+				return reader.nextBoolean();
+			} else {
+				reader.skipValue();
+			}
+		}
+		throw new IOException("No 'has_more' field in response");
+	}
+	
+	
+	/**
+	 * Read 'photos' array of response and add images described in it to the list. 
+	 * Photos missing URL, upload date or any of coordinates are skipped
+	 * 
+	 * @param in		response stream
+	 * @param images	list to add images into
+	 * @return	value of 'has_more' field, false if it is absent
+	 * @throws IOException	if stream cannot be read or 'photos' field is absent
+	 */
+	static public boolean readImages(InputStream in, List<Image> images) throws IOException {
+		JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+		boolean hasPhotos = false, hasMore = false;
+		reader.beginObject();
+		while (reader.hasNext()){
+			String name = reader.nextName();
+			if (name.equals("photos")){
+				reader.beginArray();
+				while (reader.hasNext()){
+					Image image = readImage(reader);
+					if (image != null){
+						images.add(image);
+					}
+				}
+				reader.endArray();
+				hasPhotos = true;
+			} else if (name.equals("has_more")){
+				hasMore = reader.nextBoolean();
+			} else {
+				reader.skipValue();
+			}
+		}
+		if (!hasPhotos){
+			throw new IOException("No 'photos' field in response");
+		}
+		return hasMore;
+	}
+	
+	
+	/* read one photo object, return null if it is incomplete */
+	static private Image readImage(JsonReader reader) throws IOException {
+		Date date = null;
+		String url = null, link = "", author = "", title = "";
+		double longitude = 0, latitude = 0;
+		boolean hasLongitude = false, hasLatitude = false;
+		
+		reader.beginObject();
+		while (reader.hasNext()){
+			String name = reader.nextName();
+			if (reader.peek() == JsonToken.NULL){
+				reader.nextNull();
+			} else if (name.equals("upload_date")){
+				try {
+					date = dateFormat.get().parse(reader.nextString());
+				} catch (ParseException e){
+					date = null;
+				}
+			} else if (name.equals("photo_file_url")){
+				url = reader.nextString();
+			} else if (name.equals("photo_url")){
+				link = reader.nextString();
+			} else if (name.equals("owner_name")){
+				author = reader.nextString();
+			} else if (name.equals("photo_title")){
+				title = reader.nextString();
+			} else if (name.equals("longitude")){
+				longitude = reader.nextDouble();
+				hasLongitude = true;
+			} else if (name.equals("latitude")){
+				latitude = reader.nextDouble();
+				hasLatitude = true;
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		
+		// a photo without coordinates would be placed at 0,0 and spoil nearest ranking
+		if (date == null || url == null || !hasLongitude || !hasLatitude){
+			Log.println(Log.DEBUG, "panoramiator", "Incomplete photo skipped: " + url);
+			return null;
+		}
+		return new Image(date, url, link, author, title, longitude, latitude);
+	}
+}
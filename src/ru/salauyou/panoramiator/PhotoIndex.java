@@ -0,0 +1,242 @@
+package ru.salauyou.panoramiator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PhotoIndex keeps records of all Panoramio photos seen during the session in a grid of geographic cells,
+ * together with circular areas where all photos are known to be fetched. It answers nearest-N queries 
+ * without network if the area of the answer is covered. When capacity is exceeded, photos farthest 
+ * from the latest location are evicted. Images returned by the index are copies holding no bitmap.
+ */
+public class PhotoIndex {
+
+	/**
+	 * Circular area which photos were fetched completely
+	 */
+	static private class Coverage {
+		final double longitude, latitude, radius;
+		
+		Coverage(double longitude, double latitude, double radius){
+			this.longitude = longitude;
+			this.latitude = latitude;
+			this.radius = radius;
+		}
+	}
+	
+	static public final int CAPACITY_DEFAULT = 5000;
+	static private final int COVERAGES_MAX = 64;
+	static private final double CELL_SIZE = 0.005;		// degrees, ~ 550 m of latitude
+	static private final int RINGS_MAX = 20;			// cells around location to look for photos in
+	static private final double METERS_PER_DEGREE = 111195.0;
+	static private final GeoDistance.Mode DISTANCE_MODE = GeoDistance.Mode.FAST;
+	
+	final private int capacity;
+	final private Map<Long, List<Image>> cells = new HashMap<Long, List<Image>>();
+	final private Map<String, Image> images = new HashMap<String, Image>();
+	final private List<Coverage> coverages = new ArrayList<Coverage>();
+	private double longitudeLast, latitudeLast;
+	
+	
+	/**
+	 * Create index of default capacity
+	 */
+	public PhotoIndex(){
+		this(CAPACITY_DEFAULT);
+	}
+	
+	/**
+	 * Create index
+	 * 
+	 * @param capacity	maximum quantity of photos to keep
+	 */
+	public PhotoIndex(int capacity){
+		this.capacity = capacity;
+	}
+	
+	
+	/**
+	 * Add photos fetched around given location. All photos within given radius must be among them
+	 * 
+	 * @param imagesFetched
+	 * @param longitude		location of fetch
+	 * @param latitude
+	 * @param radius		radius of covered area in meters, 0 if nothing is covered
+	 */
+	public synchronized void add(List<Image> imagesFetched, double longitude, double latitude, double radius){
+		longitudeLast = longitude;
+		latitudeLast = latitude;
+		for (Image image : imagesFetched){
+			if (!images.containsKey(image.getUrl())){
+				Image record = image.copy();
+				images.put(record.getUrl(), record);
+				Long key = getCellKey(getCell(record.getLongitude()), getCell(record.getLatitude()));
+				List<Image> cell = cells.get(key);
+				if (cell == null){
+					cell = new ArrayList<Image>();
+					cells.put(key, cell);
+				}
+				cell.add(record);
+			}
+		}
+		if (radius > 0){
+			coverages.add(new Coverage(longitude, latitude, radius));
+			if (coverages.size() > COVERAGES_MAX){
+				removeCoverageFarthest();
+			}
+		}
+		if (images.size() > capacity){
+			evict();
+		}
+	}
+	
+	
+	/**
+	 * Get needed quantity of photos nearest to given location, sorted by upload date
+	 * 
+	 * @param longitude
+	 * @param latitude
+	 * @param qty
+	 * @return	list of image copies, or null if area of nearest photos is not covered
+	 */
+	public synchronized List<Image> getImagesNearest(double longitude, double latitude, int qty){
+		longitudeLast = longitude;
+		latitudeLast = latitude;
+		if (qty <= 0){
+			return null;
+		}
+		
+		// min size of cell in meters, to know how far photos outside of looked cells can be 
+		double cellMeters = CELL_SIZE * METERS_PER_DEGREE * Math.cos(Math.min(89.0, Math.abs(latitude) + CELL_SIZE) / 180.0 * Math.PI);
+		int cx = getCell(longitude), cy = getCell(latitude);
+		List<Image> candidates = new ArrayList<Image>();
+		
+		// look through rings of cells around location until 'qty' nearest photos are surely found
+		for (int ring = 0; ring <= RINGS_MAX; ring++){
+			for (int x = cx - ring; x <= cx + ring; x++){
+				for (int y = cy - ring; y <= cy + ring; y++){
+					if (Math.abs(x - cx) == ring || Math.abs(y - cy) == ring){
+						List<Image> cell = cells.get(getCellKey(x, y));
+						if (cell != null){
+							candidates.addAll(cell);
+						}
+					}
+				}
+			}
+			if (candidates.size() >= qty){
+				double radius = getDistanceNth(candidates, longitude, latitude, qty);
+				if (radius <= ring * cellMeters){
+					if (!isCovered(longitude, latitude, radius)){
+						return null;
+					}
+					List<Image> result = new ArrayList<Image>(candidates.size());
+					for (Image image : candidates){
+						result.add(image.copy());
+					}
+					return ImageListUpdater.getImagesNearestSorted(result, longitude, latitude, qty);
+				}
+			}
+		}
+		return null;
+	}
+	
+	
+	/**
+	 * Get quantity of photos in the index
+	 * 
+	 * @return
+	 */
+	public synchronized int size(){
+		return images.size();
+	}
+	
+	
+	/* return if circle of given radius around location is inside of some covered area */
+	private boolean isCovered(double longitude, double latitude, double radius){
+		for (Coverage c : coverages){
+			if (distance(c.longitude, c.latitude, longitude, latitude) + radius <= c.radius){
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	
+	/* remove photos farthest from the latest location and coverages which become incomplete by it */
+	private void evict(){
+		int n = images.size();
+		int toKeep = capacity * 9 / 10;
+		double[] distances = new double[n];
+		int i = 0;
+		for (Image image : images.values()){
+			distances[i++] = distance(longitudeLast, latitudeLast, image.getLongitude(), image.getLatitude());
+		}
+		Arrays.sort(distances);
+		double limit = distances[toKeep];
+		
+		for (Iterator<List<Image>> it = cells.values().iterator(); it.hasNext(); ){
+			List<Image> cell = it.next();
+			for (Iterator<Image> itImage = cell.iterator(); itImage.hasNext(); ){
+				Image image = itImage.next();
+				if (distance(longitudeLast, latitudeLast, image.getLongitude(), image.getLatitude()) >= limit){
+					itImage.remove();
+					images.remove(image.getUrl());
+				}
+			}
+			if (cell.isEmpty()){
+				it.remove();
+			}
+		}
+		for (Iterator<Coverage> it = coverages.iterator(); it.hasNext(); ){
+			Coverage c = it.next();
+			if (distance(longitudeLast, latitudeLast, c.longitude, c.latitude) + c.radius >= limit){
+				it.remove();
+			}
+		}
+	}
+	
+	
+	/* remove coverage farthest from the latest location */
+	private void removeCoverageFarthest(){
+		int farthest = 0;
+		double distanceMax = -1;
+		for (int i = 0; i < coverages.size(); i++){
+			double d = distance(longitudeLast, latitudeLast, coverages.get(i).longitude, coverages.get(i).latitude);
+			if (d > distanceMax){
+				distanceMax = d;
+				farthest = i;
+			}
+		}
+		coverages.remove(farthest);
+	}
+	
+	
+	/* return distance to n-th nearest image */
+	static private double getDistanceNth(List<Image> candidates, double longitude, double latitude, int n){
+		double[] distances = new double[candidates.size()];
+		for (int i = 0; i < distances.length; i++){
+			distances[i] = distance(longitude, latitude, candidates.get(i).getLongitude(), candidates.get(i).getLatitude());
+		}
+		Arrays.sort(distances);
+		return distances[n - 1];
+	}
+	
+	
+	static private double distance(double longitude1, double latitude1, double longitude2, double latitude2){
+		return GeoDistance.distance(longitude1, latitude1, longitude2, latitude2, DISTANCE_MODE);
+	}
+	
+	
+	static private int getCell(double degrees){
+		return (int)Math.floor(degrees / CELL_SIZE);
+	}
+	
+	
+	static private Long getCellKey(int x, int y){
+		return Long.valueOf(((long)x << 32) | (y & 0xffffffffL));
+	}
+}
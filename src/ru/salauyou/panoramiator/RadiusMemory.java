@@ -0,0 +1,218 @@
+package ru.salauyou.panoramiator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * RadiusMemory stores Panoramio search intervals learned by {@code ImageListUpdater}, 
+ * keyed by geohash cell of search location and requested quantity of images.
+ * Least recently used entries are evicted when capacity is exceeded. If backing file is set, 
+ * the store is loaded from it on creation, and written to it in background shortly after updates, 
+ * so that updates following each other are written at once.
+ */
+public class RadiusMemory {
+
+	/**
+	 * Search interval of latitude delta: Panoramio has not more than needed images 
+	 * within {@code deltaL}, and has more within {@code deltaR}
+	 */
+	static public class Interval {
+		final public double deltaL;
+		final public double deltaR;
+		
+		public Interval(double deltaL, double deltaR){
+			this.deltaL = deltaL;
+			this.deltaR = deltaR;
+		}
+	}
+	
+	static public final int GEOHASH_PRECISION = 6;	// ~ 1.2 x 0.6 km
+	static public final int CAPACITY_DEFAULT = 256;
+	static private final long SAVE_DELAY = 2000;	// ms
+	
+	final private File file;
+	final private Map<String, Interval> intervals;
+	private ScheduledExecutorService saver;		// created on first save
+	private boolean saveScheduled = false;
+	
+	
+	/**
+	 * Create in-memory store with default capacity
+	 */
+	public RadiusMemory(){
+		this(null, CAPACITY_DEFAULT);
+	}
+	
+	/**
+	 * Create store backed by file
+	 * 
+	 * @param file		file to load from and save to. If null, store is kept in memory only
+	 * @param capacity	maximum number of intervals to keep
+	 */
+	public RadiusMemory(File file, final int capacity){
+		this.file = file;
+		// access-ordered map evicting eldest entry
+		this.intervals = new LinkedHashMap<String, Interval>(capacity, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Interval> eldest){
+				return size() > capacity;
+			}
+		};
+		load();
+	}
+	
+	
+	/**
+	 * Get interval learned for given location and quantity. If nothing was learned for 
+	 * the cell of location, returns the latest interval learned for the same quantity elsewhere
+	 * 
+	 * @param longitude
+	 * @param latitude
+	 * @param qty
+	 * @return	interval, or null if nothing was learned for the quantity yet
+	 */
+	public synchronized Interval get(double longitude, double latitude, int qty){
+		Interval interval = intervals.get(getKey(longitude, latitude, qty));
+		if (interval == null){
+			// iteration order is from least to most recently used
+			String suffix = " " + qty;
+			for (Map.Entry<String, Interval> e : intervals.entrySet()){
+				if (e.getKey().endsWith(suffix)){
+					interval = e.getValue();
+				}
+			}
+		}
+		return interval;
+	}
+	
+	
+	/**
+	 * Store interval learned for given location and quantity. The file is written in background
+	 * 
+	 * @param longitude
+	 * @param latitude
+	 * @param qty
+	 * @param interval
+	 */
+	public synchronized void put(double longitude, double latitude, int qty, Interval interval){
+		intervals.put(getKey(longitude, latitude, qty), interval);
+		scheduleSave();
+	}
+	
+	
+	/**
+	 * Get quantity of stored intervals
+	 * 
+	 * @return
+	 */
+	public synchronized int size(){
+		return intervals.size();
+	}
+	
+	
+	/* return key of the map: geohash and quantity separated by space */
+	static private String getKey(double longitude, double latitude, int qty){
+		return Geohash.encode(longitude, latitude, GEOHASH_PRECISION) + " " + qty;
+	}
+	
+	
+	/* read intervals from file, line format is 'geohash qty deltaL deltaR' */
+	private void load(){
+		if (file == null || !file.exists()){
+			return;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			String line;
+			while ((line = reader.readLine()) != null){
+				String[] parts = line.split(" ");
+				if (parts.length == 4){
+					intervals.put(parts[0] + " " + parts[1], 
+							new Interval(Double.parseDouble(parts[2]), Double.parseDouble(parts[3])));
+				}
+			}
+		} catch (IOException e){
+			Log.d("debug", "Radius memory cannot be loaded");
+		} catch (NumberFormatException e){
+			Log.d("debug", "Radius memory is corrupted");
+			intervals.clear();
+		} finally {
+			close(reader);
+		}
+	}
+	
+	
+	/* schedule writing of the file, unless it is already scheduled. Called under lock */
+	private void scheduleSave(){
+		if (file == null || saveScheduled){
+			return;
+		}
+		if (saver == null){
+			saver = Executors.newSingleThreadScheduledExecutor();
+		}
+		saveScheduled = true;
+		saver.schedule(new Runnable(){
+			@Override
+			public void run(){
+				save();
+			}
+		}, SAVE_DELAY, TimeUnit.MILLISECONDS);
+	}
+	
+	
+	/* write intervals into temporary file and replace the file by it. Runs in saver thread */
+	private void save(){
+		List<String> lines = new ArrayList<String>();
+		synchronized (this){
+			saveScheduled = false;
+			for (Map.Entry<String, Interval> e : intervals.entrySet()){
+				lines.add(e.getKey() + " " + e.getValue().deltaL + " " + e.getValue().deltaR);
+			}
+		}
+		File temp = new File(file.getPath() + ".tmp");
+		PrintWriter writer = null;
+		try {
+			writer = new PrintWriter(new FileWriter(temp));
+			for (String line : lines){
+				writer.println(line);
+			}
+			writer.close();
+			writer = null;
+			if (!temp.renameTo(file)){
+				Log.d("debug", "Radius memory cannot be saved");
+			}
+		} catch (IOException e){
+			Log.d("debug", "Radius memory cannot be saved");
+		} finally {
+			if (writer != null){
+				writer.close();
+			}
+		}
+	}
+	
+	
+	static private void close(BufferedReader reader){
+		if (reader != null){
+			try {
+				reader.close();
+			} catch (IOException e){
+				// nothing to do
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package ru.salauyou.panoramiator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ReadySet is a fixed-size set of positions of images which bitmaps are ready, stored as bits
+ * of 64-bit words. It keeps count of positions set, and finds the nearest set position by scanning
+ * words. Positions may be set and cleared concurrently.
+ */
+class ReadySet {
+
+	final private int size;
+	final private AtomicLongArray words;
+	final private AtomicInteger count = new AtomicInteger();
+	
+	
+	/**
+	 * Create empty set
+	 * 
+	 * @param size	number of positions
+	 */
+	ReadySet(int size){
+		this.size = size;
+		this.words = new AtomicLongArray((size + 63) >>> 6);
+	}
+	
+	
+	/**
+	 * Get number of positions
+	 * 
+	 * @return
+	 */
+	int size(){
+		return size;
+	}
+	
+	
+	/**
+	 * Get number of positions set
+	 * 
+	 * @return
+	 */
+	int count(){
+		return count.get();
+	}
+	
+	
+	/**
+	 * Check position
+	 * 
+	 * @param position
+	 * @return
+	 */
+	boolean get(int position){
+		return (words.get(position >>> 6) & (1L << position)) != 0;
+	}
+	
+	
+	/**
+	 * Set or clear position
+	 * 
+	 * @param position
+	 * @param ready
+	 */
+	void set(int position, boolean ready){
+		int w = position >>> 6;
+		long bit = 1L << position;
+		while (true){
+			long word = words.get(w);
+			long wordNew = ready ? (word | bit) : (word & ~bit);
+			if (word == wordNew){
+				return;
+			}
+			if (words.compareAndSet(w, word, wordNew)){
+				count.addAndGet(ready ? 1 : -1);
+				return;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Find the first set position not less than given one
+	 * 
+	 * @param from
+	 * @return	position, or -1 if there is none
+	 */
+	int nextSet(int from){
+		if (from < 0){
+			from = 0;
+		}
+		if (from >= size){
+			return -1;
+		}
+		int w = from >>> 6;
+		long word = words.get(w) & (-1L << from);
+		while (true){
+			if (word != 0){
+				int position = (w << 6) + Long.numberOfTrailingZeros(word);
+				return position < size ? position : -1;
+			}
+			if (++w >= words.length()){
+				return -1;
+			}
+			word = words.get(w);
+		}
+	}
+	
+	
+	/**
+	 * Find the last set position not greater than given one
+	 * 
+	 * @param from
+	 * @return	position, or -1 if there is none
+	 */
+	int previousSet(int from){
+		if (from >= size){
+			from = size - 1;
+		}
+		if (from < 0){
+			return -1;
+		}
+		int w = from >>> 6;
+		long word = words.get(w) & (-1L >>> (63 - (from & 63)));
+		while (true){
+			if (word != 0){
+				return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+			}
+			if (--w < 0){
+				return -1;
+			}
+			word = words.get(w);
+		}
+	}
+	
+	
+	/**
+	 * Find the nearest set position after given one, going around the ring of positions
+	 * 
+	 * @param position
+	 * @return	position, or -1 if there is none except, possibly, given one
+	 */
+	int nextSetCircular(int position){
+		int found = nextSet(position + 1);
+		if (found < 0){
+			found = nextSet(0);
+		}
+		return found == position ? -1 : found;
+	}
+	
+	
+	/**
+	 * Find the nearest set position before given one, going around the ring of positions
+	 * 
+	 * @param position
+	 * @return	position, or -1 if there is none except, possibly, given one
+	 */
+	int previousSetCircular(int position){
+		int found = previousSet(position - 1);
+		if (found < 0){
+			found = previousSet(size - 1);
+		}
+		return found == position ? -1 : found;
+	}
+}
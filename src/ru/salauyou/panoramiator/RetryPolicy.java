@@ -0,0 +1,178 @@
+package ru.salauyou.panoramiator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import android.util.Log;
+
+/**
+ * RetryPolicy decides when failed photo downloads may be retried. Image which download failed
+ * is retried after exponentially growing delay with random jitter, until the limit of attempts is reached. 
+ * Hosts are guarded by circuit breakers: after several consecutive network failures, downloads from 
+ * the host are not started for a while, then a single trial download is let through, and its result 
+ * either closes the breaker or keeps it open for another period. Errors of a photo itself, 
+ * like missing file, are not counted by breakers. Images which failed before their host 
+ * recovered get their attempts back.
+ */
+public class RetryPolicy {
+
+	static public final int ATTEMPTS_MAX = 5;
+	
+	static private final long BACKOFF_BASE = 1000;			// ms
+	static private final long BACKOFF_MAX = 5 * 60 * 1000;	// ms
+	static private final double JITTER = 0.5;				// delay is randomized within +-50%
+	static private final int BREAKER_THRESHOLD = 5;			// consecutive failures
+	static private final long BREAKER_OPEN_TIME = 30 * 1000;	// ms
+	
+	static private final RetryPolicy instance = new RetryPolicy();
+	
+	final private Random random = new Random();
+	final private Map<String, Breaker> breakers = new HashMap<String, Breaker>();
+	
+	
+	private RetryPolicy(){
+		// singleton
+	}
+	
+	
+	/**
+	 * Get policy shared by all images
+	 * 
+	 * @return
+	 */
+	static public RetryPolicy getInstance(){
+		return instance;
+	}
+	
+	
+	/**
+	 * Get delay before the next attempt
+	 * 
+	 * @param failures	number of failed attempts
+	 * @return	delay in ms, or {@code Long.MAX_VALUE} if no more attempts are allowed
+	 */
+	public long getRetryDelay(int failures){
+		if (failures >= ATTEMPTS_MAX){
+			return Long.MAX_VALUE;
+		}
+		long delay = Math.min(BACKOFF_MAX, BACKOFF_BASE << Math.max(0, failures - 1));
+		double jitter;
+		synchronized (random){
+			jitter = 1.0 + JITTER * (2.0 * random.nextDouble() - 1.0);
+		}
+		return (long)(delay * jitter);
+	}
+	
+	
+	/**
+	 * Check whether download from host of the URL may be started now. When breaker of the host 
+	 * is open and its period is over, this lets one trial download through
+	 * 
+	 * @param url
+	 * @return
+	 */
+	public synchronized boolean allowRequest(String url){
+		Breaker breaker = breakers.get(getHost(url));
+		if (breaker == null || breaker.openUntil == 0){
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		if (now < breaker.openUntil){
+			return false;
+		}
+		// half-open: other downloads wait for result of the trial one
+		breaker.openUntil = now + BREAKER_OPEN_TIME;
+		return true;
+	}
+	
+	
+	/**
+	 * Get time when download from host of the URL may be tried again
+	 * 
+	 * @param url
+	 * @return	time in ms, or 0 if download is allowed
+	 */
+	public synchronized long getRetryTime(String url){
+		Breaker breaker = breakers.get(getHost(url));
+		return breaker == null ? 0 : breaker.openUntil;
+	}
+	
+	
+	/**
+	 * Check whether breaker of the host of the URL is open
+	 * 
+	 * @param url
+	 * @return
+	 */
+	public synchronized boolean isOpen(String url){
+		Breaker breaker = breakers.get(getHost(url));
+		return breaker != null && breaker.openUntil > System.currentTimeMillis();
+	}
+	
+	
+	/**
+	 * Get time when breaker of the host of the URL was closed the last time after being open
+	 * 
+	 * @param url
+	 * @return	time in ms, or 0 if it was never open
+	 */
+	public synchronized long getRecoveryTime(String url){
+		Breaker breaker = breakers.get(getHost(url));
+		return breaker == null ? 0 : breaker.closedAt;
+	}
+	
+	
+	/**
+	 * Register successful transfer from host of the URL
+	 * 
+	 * @param url
+	 */
+	public synchronized void onSuccess(String url){
+		Breaker breaker = breakers.get(getHost(url));
+		if (breaker != null){
+			if (breaker.openUntil != 0){
+				breaker.closedAt = System.currentTimeMillis();
+			}
+			breaker.failures = 0;
+			breaker.openUntil = 0;
+		}
+	}
+	
+	
+	/**
+	 * Register failed transfer from host of the URL. Must not be called for errors of the photo itself
+	 * 
+	 * @param url
+	 */
+	public synchronized void onFailure(String url){
+		String host = getHost(url);
+		Breaker breaker = breakers.get(host);
+		if (breaker == null){
+			breaker = new Breaker();
+			breakers.put(host, breaker);
+		}
+		breaker.failures++;
+		if (breaker.failures >= BREAKER_THRESHOLD){
+			breaker.openUntil = System.currentTimeMillis() + BREAKER_OPEN_TIME;
+			Log.println(Log.DEBUG, "panoramiator", "Downloads from " + host + " suspended after " + breaker.failures + " failures");
+		}
+	}
+	
+	
+	/* return host part of URL */
+	static private String getHost(String url){
+		int start = url.indexOf("://");
+		start = start < 0 ? 0 : start + 3;
+		int end = url.indexOf('/', start);
+		return end < 0 ? url.substring(start) : url.substring(start, end);
+	}
+	
+	
+	
+	static private class Breaker {
+		int failures = 0;
+		long openUntil = 0;		// 0 if closed
+		long closedAt = 0;		// ms, the last time breaker was closed after being open
+	}
+}
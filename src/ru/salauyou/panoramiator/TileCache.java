@@ -0,0 +1,219 @@
+package ru.salauyou.panoramiator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import android.util.Log;
+
+/**
+ * TileCache splits the world into fixed tiles at several zoom levels and keeps Panoramio photos
+ * fetched for every tile during time-to-live. Photos around a location are combined from cached tiles,
+ * and only missing tiles are fetched, in parallel. Tiles are rows of latitude, each row split into 
+ * columns of longitude that are approximately the same size in meters. Returned images are copies
+ * of cached ones. Boxes larger than tiles of the coarsest zoom are fetched by one request and not cached.
+ */
+public class TileCache {
+
+	/**
+	 * Fetcher of photos within bounding box
+	 */
+	public interface Fetcher {
+		
+		/**
+		 * Fetch not more than 'qty' photos within bounding box
+		 * 
+		 * @return	true if there are more photos in the box
+		 */
+		boolean fetch(double minLongitude, double minLatitude, double maxLongitude, double maxLatitude, 
+				int qty, List<Image> images) throws IOException;
+	}
+	
+	/**
+	 * Photos fetched for one tile
+	 */
+	static private class Tile {
+		final List<Image> images;
+		final boolean hasMore;	// if tile has more photos than fetched
+		final int qty;			// quantity of photos asked for
+		final long time;		// time of fetch, ms
+		
+		Tile(List<Image> images, boolean hasMore, int qty, long time){
+			this.images = images;
+			this.hasMore = hasMore;
+			this.qty = qty;
+			this.time = time;
+		}
+	}
+	
+	static public final long TTL_DEFAULT = 30 * 60 * 1000L;	// ms
+	static public final int CAPACITY_DEFAULT = 256;
+	static public final int ZOOM_LEVELS = 12;
+	static private final double TILE_SIZE_MIN = 0.0005;		// degrees of latitude at zoom 0, ~ 55 m (~ 1 degree at zoom 11)
+	
+	final private long ttl;
+	final private Map<String, Tile> tiles;	// guarded by itself
+	
+	
+	/**
+	 * Create cache with default time-to-live and capacity
+	 */
+	public TileCache(){
+		this(TTL_DEFAULT, CAPACITY_DEFAULT);
+	}
+	
+	/**
+	 * Create cache
+	 * 
+	 * @param ttl		time-to-live of a tile, ms
+	 * @param capacity	maximum quantity of tiles to keep
+	 */
+	public TileCache(long ttl, final int capacity){
+		this.ttl = ttl;
+		this.tiles = new LinkedHashMap<String, Tile>(capacity, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Tile> eldest){
+				return size() > capacity;
+			}
+		};
+	}
+	
+	
+	/**
+	 * Get photos within bounding box around location. Zoom is chosen so that the box
+	 * is covered by not more than 3 x 3 tiles. Quantity is split between tiles by their overlap 
+	 * with the box, so about the same quantity is transferred as for one request of the box. 
+	 * Tiles missing in cache, expired or fetched with less quantity are fetched in parallel. 
+	 * If the box is larger than tiles of the coarsest zoom, it is fetched by one request instead
+	 * 
+	 * @param longitude
+	 * @param latitude
+	 * @param delta		half-size of the box in degrees of latitude
+	 * @param qty		quantity of photos to fetch for the box
+	 * @param fetcher
+	 * @param executor	executor to run fetches in
+	 * @param imagesFound	list to add photos of all tiles intersecting the box to
+	 * @return	true if some tile has more photos than fetched, so photos of the box may be incomplete
+	 * @throws IOException				if some tile cannot be fetched
+	 * @throws InterruptedException
+	 */
+	public boolean getImages(double longitude, double latitude, double delta, int qty,
+			final Fetcher fetcher, ExecutorService executor, List<Image> imagesFound) throws IOException, InterruptedException {
+		
+		double deltaLongitude = ImageListUpdater.getLongitudeDelta(latitude, delta);
+		
+		// too many tiles would be needed to cover the box
+		if (delta > getTileSize(ZOOM_LEVELS - 1)){
+			Log.println(Log.DEBUG, "panoramiator", "Box is larger than tiles, fetched at once");
+			return fetcher.fetch(longitude - deltaLongitude, latitude - delta, longitude + deltaLongitude, latitude + delta, 
+					qty, imagesFound);
+		}
+		
+		int zoom = 0;
+		while (zoom < ZOOM_LEVELS - 1 && getTileSize(zoom) < delta){
+			zoom++;
+		}
+		final double size = getTileSize(zoom);
+		double boxArea = 4.0 * delta * deltaLongitude;
+		long now = System.currentTimeMillis();
+		
+		List<Image> images = new ArrayList<Image>();
+		boolean hasMore = false;
+		List<Callable<Tile>> fetches = new ArrayList<Callable<Tile>>();
+		final List<String> keys = new ArrayList<String>();
+		
+		for (int y = getIndex(latitude - delta, size); y <= getIndex(latitude + delta, size); y++){
+			// longitude size of tiles in this row
+			final double sizeLongitude = ImageListUpdater.getLongitudeDelta((y + 0.5) * size, size);
+			final double minLatitude = y * size;
+			double overlapLatitude = Math.min(minLatitude + size, latitude + delta) - Math.max(minLatitude, latitude - delta);
+			for (int x = getIndex(longitude - deltaLongitude, sizeLongitude); 
+					x <= getIndex(longitude + deltaLongitude, sizeLongitude); x++){
+				String key = zoom + "/" + x + "/" + y;
+				final double minLongitude = x * sizeLongitude;
+				// the tile's share of quantity is its share of the box
+				double overlapLongitude = Math.min(minLongitude + sizeLongitude, longitude + deltaLongitude) 
+						- Math.max(minLongitude, longitude - deltaLongitude);
+				final int qtyTile = Math.max(1, (int)Math.ceil(qty * overlapLatitude * overlapLongitude / boxArea));
+				Tile tile;
+				synchronized (tiles){
+					tile = tiles.get(key);
+				}
+				if (tile != null && now - tile.time < ttl && (tile.qty >= qtyTile || !tile.hasMore)){
+					images.addAll(tile.images);
+					hasMore |= tile.hasMore;
+				} else {
+					keys.add(key);
+					fetches.add(new Callable<Tile>(){
+						@Override
+						public Tile call() throws IOException {
+							List<Image> fetched = new ArrayList<Image>();
+							boolean hasMore = fetcher.fetch(minLongitude, minLatitude, 
+									minLongitude + sizeLongitude, minLatitude + size, qtyTile, fetched);
+							return new Tile(fetched, hasMore, qtyTile, System.currentTimeMillis());
+						}
+					});
+				}
+			}
+		}
+		Log.println(Log.DEBUG, "panoramiator", "Tiles to fetch: " + fetches.size() + ", zoom: " + zoom);
+		
+		// fetch missing tiles and put them into cache
+		List<Future<Tile>> futures = executor.invokeAll(fetches);
+		IOException failure = null;
+		for (int i = 0; i < futures.size(); i++){
+			try {
+				Tile tile = futures.get(i).get();
+				synchronized (tiles){
+					tiles.put(keys.get(i), tile);
+				}
+				images.addAll(tile.images);
+				hasMore |= tile.hasMore;
+			} catch (ExecutionException e){
+				failure = (e.getCause() instanceof IOException) ? (IOException)e.getCause() : new IOException(e.getCause().toString());
+			}
+		}
+		if (failure != null){
+			throw failure;
+		}
+		
+		// the same photo can be returned for neighbour tiles if it lies on the border
+		Set<String> urls = new HashSet<String>();
+		for (Image image : images){
+			if (urls.add(image.getUrl())){
+				// cached images are never returned themselves, so they don't hold bitmaps
+				imagesFound.add(image.copy());
+			}
+		}
+		return hasMore;
+	}
+	
+	
+	/**
+	 * Remove all tiles
+	 */
+	public void clear(){
+		synchronized (tiles){
+			tiles.clear();
+		}
+	}
+	
+	
+	static private double getTileSize(int zoom){
+		return TILE_SIZE_MIN * (1 << zoom);
+	}
+	
+	
+	static private int getIndex(double degrees, double size){
+		return (int)Math.floor(degrees / size);
+	}
+}
@@ -58,6 +58,26 @@ public class SlideShowSwipe extends View {
 		 */
 		public void undoGetBitmap();
 		
+		/**
+		 * Hint of size bitmaps are displayed at. Invoked when the view is attached to container 
+		 * and when the view changes its size. Container may provide bitmaps scaled down to fit this size
+		 * 
+		 * @param width		width of the view in px
+		 * @param height	height of the view in px
+		 */
+		public void setBitmapSize(int width, int height);
+		
+		/**
+		 * Notification of bitmaps the view holds to draw. Invoked every time they change. 
+		 * Bitmaps returned by container before and not among these are released by the view, 
+		 * so container may reuse them
+		 * 
+		 * @param front		bitmap displayed, may be null
+		 * @param back		bitmap partially displayed on swipe, may be null
+		 * @param preceding	bitmap fading out during transition, may be null
+		 */
+		public void setBitmapsHeld(Bitmap front, Bitmap back, Bitmap preceding);
+		
 	}
 	
 	/**
@@ -103,6 +123,8 @@ public class SlideShowSwipe extends View {
 		if (container == null)
 			throw new NullPointerException("Container is null");
 		this.container = container;
+		if (rectDimensions.width() > 0 && rectDimensions.height() > 0)
+			container.setBitmapSize(rectDimensions.width(), rectDimensions.height());
 		reset();
 		return this;
 	}
@@ -225,6 +247,7 @@ public class SlideShowSwipe extends View {
 			throw new NullPointerException("Current bitmap is null");
 		
 		bitmapPrec = bitmapFront = container.getBitmapCurrent();
+		bitmapsHeldChanged();
 		
 		started = true;
 		pausedManually = false;
@@ -438,6 +461,10 @@ public class SlideShowSwipe extends View {
 		
 		// update move/click threshold
 		touchMoveThreshold = touchMoveThresholdScreen * Math.min(w, h);
+		
+		// let container know size of bitmaps
+		if (container != null)
+			container.setBitmapSize(w, h);
 	}
 	
 	
@@ -506,6 +533,7 @@ public class SlideShowSwipe extends View {
 				@Override
 				public void handleMessage(Message m){
 					bitmapFront = container.getBitmapCurrent();
+					bitmapsHeldChanged();
 					self.invalidate();
 				}
 			};
@@ -522,6 +550,7 @@ public class SlideShowSwipe extends View {
 
 		} else {
 			bitmapFront = container.getBitmapCurrent();
+			bitmapsHeldChanged();
 			self.invalidate();
 		}
 	}
@@ -556,6 +585,7 @@ public class SlideShowSwipe extends View {
 					rectDstPOrig = rectDstFOrig;
 					bitmapFront = container.getBitmapNext();
 					bitmapBack = bitmapFront;
+					bitmapsHeldChanged();
 					bitmapChanged();
 					if (bitmapFront != null)
 						rectDstBOrig = rectDstFOrig = calculateRectDst(bitmapFront, rectDimensions);
@@ -613,11 +643,13 @@ public class SlideShowSwipe extends View {
 		if (!startedMove){
 			if (deltaX > 0){
 				bitmapBack = container.getBitmapPrevious();
+				bitmapsHeldChanged();
 				if (bitmapBack != null)
 					rectDstBOrig = calculateRectDst(bitmapBack, rectDimensions);
 				startedMove = true;
 			} else if (deltaX < 0){
 				bitmapBack = container.getBitmapNext();
+				bitmapsHeldChanged();
 				if (bitmapBack != null)
 					rectDstBOrig = calculateRectDst(bitmapBack, rectDimensions);
 				startedMove = true;
@@ -662,6 +694,7 @@ public class SlideShowSwipe extends View {
 			bitmapFront = bitmapBack;
 			rectDstFOrig = rectDstBOrig; 
 			undoAtZero = false;
+			bitmapsHeldChanged();
 			bitmapChanged();
 		} 
 		while (deltaX <= -w){
@@ -671,6 +704,7 @@ public class SlideShowSwipe extends View {
 			bitmapFront = bitmapBack;
 			rectDstFOrig = rectDstBOrig;
 			undoAtZero = false;
+			bitmapsHeldChanged();
 			bitmapChanged();
 		}
 		
@@ -678,6 +712,7 @@ public class SlideShowSwipe extends View {
 		if (startedMove && deltaX == 0 && deltaXPrec == 0 && undoAtZero){
 			container.undoGetBitmap();
 			bitmapBack = bitmapFront;
+			bitmapsHeldChanged();
 			rectDstBOrig = rectDstFOrig;
 			undoAtZero = false;
 		}
@@ -687,6 +722,7 @@ public class SlideShowSwipe extends View {
         	if (bitmapFront != bitmapBack)
         		container.undoGetBitmap();
 			bitmapBack = container.getBitmapPrevious();
+			bitmapsHeldChanged();
 			if (bitmapBack != null)
 				rectDstBOrig = calculateRectDst(bitmapBack, rectDimensions);
 			undoAtZero = true;
@@ -696,6 +732,7 @@ public class SlideShowSwipe extends View {
         	if (bitmapFront != bitmapBack)
         		container.undoGetBitmap();
 			bitmapBack = container.getBitmapNext();
+			bitmapsHeldChanged();
 			if (bitmapBack != null)
 				rectDstBOrig = calculateRectDst(bitmapBack, rectDimensions);
 			undoAtZero = true;
@@ -772,6 +809,16 @@ public class SlideShowSwipe extends View {
 	
 	
 	
+	/**
+	 * Notifies container of bitmaps held after any of them was changed
+	 */
+	private void bitmapsHeldChanged(){
+		if (container != null)
+			container.setBitmapsHeld(bitmapFront, bitmapBack, bitmapPrec);
+	}
+	
+	
+	
 	/**
 	 * Returns rectangle that contains position of a given bitmap in coordinates of destination 
 	 * rectangle, such that the bitmap fits it aligned to center and scaled proportionally
@@ -826,6 +873,7 @@ public class SlideShowSwipe extends View {
 		bitmapFront = null;
 		bitmapBack = null;
 		bitmapPrec = null;
+		bitmapsHeldChanged();
 		
 		undoAtZero = false;
 
@@ -0,0 +1,243 @@
+package ru.salauyou.panoramiator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+import android.graphics.Bitmap;
+
+/**
+ * Runs image list updates concurrently with swipe navigation and bitmap status changes,
+ * and checks that the container stays consistent after every round
+ */
+public class ImageContainerStressTest extends TestCase {
+
+	static private final String HOST = "http://stress.invalid/";
+	static private final int STABLE = 12;		// images kept in every list, their status is changed
+	static private final int TRANSIENT = 20;	// images added and dropped by updates
+	static private final int ROUNDS = 50;
+	static private final int UPDATES = 20;		// per round
+	static private final int MOVES = 200;		// per navigator per round
+	static private final int CHANGES = 200;		// per round
+
+	private ImageContainer container;
+	private long budget;
+	private BitmapCache.Cursor cursorCache, cursorScheduler;
+	private Image.Listener listener;
+	private final List<Image> imagesStable = new ArrayList<Image>();
+	private final List<Image> imagesTransient = new ArrayList<Image>();
+	private final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		BitmapCache.getInstance().clear();
+		budget = BitmapCache.getInstance().getBudget();
+		cursorCache = BitmapCache.getInstance().getCursor();
+		cursorScheduler = DownloadScheduler.getInstance().getCursor();
+		listener = Image.getListener();
+		container = new ImageContainer(null);
+
+		// keep downloads from starting, so only the test changes status of images
+		while (!RetryPolicy.getInstance().isOpen(HOST)){
+			RetryPolicy.getInstance().onFailure(HOST);
+		}
+
+		// stable images are the nearest to location, so quantity updates keep them
+		Random random = new Random(1);
+		for (int i = 0; i < STABLE; i++){
+			imagesStable.add(getImage(i, random.nextInt(1000000), 0.001 * i));
+		}
+		for (int i = 0; i < TRANSIENT; i++){
+			Image image = getImage(STABLE + i, random.nextInt(1000000), 1.0 + 0.001 * i);
+			image.setBitmap(Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888));
+			imagesTransient.add(image);
+		}
+	}
+
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (Image image : imagesStable){
+			image.release();
+		}
+		for (Image image : imagesTransient){
+			image.release();
+		}
+		BitmapCache.getInstance().setBudget(budget);
+		BitmapCache.getInstance().clear();
+		BitmapCache.getInstance().setCursor(cursorCache);
+		DownloadScheduler.getInstance().setCursor(cursorScheduler);
+		Image.setListener(listener);
+		super.tearDown();
+	}
+
+
+	public void testUpdatesWithNavigation() throws InterruptedException {
+		container.receiveImageList(getList(new Random(0)), 0);
+		// small budget, so bitmaps are also evicted by the cache
+		BitmapCache.getInstance().setBudget(STABLE * 4 * 4 * 4 / 2);
+
+		for (int round = 0; round < ROUNDS; round++){
+			final CountDownLatch start = new CountDownLatch(1);
+			List<Thread> threads = new ArrayList<Thread>();
+			threads.add(new Worker(start, round){
+				@Override
+				void work(Random random){
+					update(random);
+				}
+			});
+			for (int n = 0; n < 2; n++){
+				threads.add(new Worker(start, round * 10 + n){
+					@Override
+					void work(Random random){
+						navigate(random);
+					}
+				});
+			}
+			threads.add(new Worker(start, round * 100){
+				@Override
+				void work(Random random){
+					changeStatus(random);
+				}
+			});
+			for (Thread thread : threads){
+				thread.start();
+			}
+			start.countDown();
+			for (Thread thread : threads){
+				thread.join();
+			}
+			if (!errors.isEmpty()){
+				throw new AssertionError("Round " + round + ": " + errors.get(0));
+			}
+			checkConsistent(round);
+		}
+	}
+
+
+	/* replace the list and change quantity of images */
+	private void update(Random random){
+		for (int i = 0; i < UPDATES; i++){
+			if (random.nextBoolean()){
+				container.receiveImageList(getList(random), 0);
+			} else {
+				// not more than in the list, so no search is started
+				container.setQty(STABLE + random.nextInt(container.getQtyActual() - STABLE + 1));
+			}
+		}
+	}
+
+
+	/* swipe forward and back, as the view does */
+	private void navigate(Random random){
+		for (int i = 0; i < MOVES; i++){
+			int action = random.nextInt(10);
+			Bitmap bitmap;
+			if (action < 6){
+				bitmap = container.getBitmapNext();
+			} else if (action < 9){
+				bitmap = container.getBitmapPrevious();
+			} else {
+				bitmap = container.getBitmapCurrent();
+			}
+			container.setBitmapsHeld(bitmap, null, null);
+			Image current = container.getImageCurrent();
+			if (current != null && !imagesStable.contains(current) && !imagesTransient.contains(current)){
+				throw new AssertionError("Unknown current image " + current.getUrl());
+			}
+		}
+	}
+
+
+	/* make stable images ready and not ready, reporting it to the container */
+	private void changeStatus(Random random){
+		for (int i = 0; i < CHANGES; i++){
+			Image image = imagesStable.get(random.nextInt(STABLE));
+			if (image.isReady()){
+				image.release();
+			} else {
+				image.setBitmap(Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888));
+			}
+		}
+	}
+
+
+	/* check container when no thread changes it */
+	private void checkConsistent(int round){
+		List<Image> images = container.getImages();
+		assertEquals(images.size(), container.getQtyActual());
+		int ready = 0;
+		for (Image image : images){
+			if (image.isReady()){
+				ready++;
+			}
+		}
+		assertEquals("round " + round, ready, container.getQtyReady());
+		assertTrue(images.containsAll(imagesStable));
+
+		// the next image is a ready one of the current list, other than the image at cursor
+		Image previous = container.getImageCurrent();
+		if (previous != null && previous.isReady() && images.contains(previous)){
+			ready--;
+		}
+		Bitmap bitmap = container.getBitmapNext();
+		if (ready == 0){
+			assertNull(bitmap);
+		} else {
+			Image current = container.getImageCurrent();
+			assertNotNull("round " + round, bitmap);
+			assertTrue("round " + round, images.contains(current));
+			assertTrue(current.isReady());
+			assertSame(current.getBitmap(), bitmap);
+		}
+		container.setBitmapsHeld(bitmap, null, null);
+	}
+
+
+	/* all stable images and random part of transient ones, newest first */
+	private List<Image> getList(Random random){
+		List<Image> images = new ArrayList<Image>(imagesStable);
+		for (Image image : imagesTransient){
+			if (random.nextInt(3) > 0){
+				images.add(image);
+			}
+		}
+		return ImageListUpdater.getImagesNearestSorted(images, 0, 0, images.size());
+	}
+
+
+	static private Image getImage(int id, long time, double longitude){
+		return new Image(new Date(time * 1000L), HOST + id + ".jpg", "", "", "", longitude, 0);
+	}
+
+
+	/* thread starting its work with others and recording errors */
+	private abstract class Worker extends Thread {
+
+		final private CountDownLatch start;
+		final private long seed;
+
+		Worker(CountDownLatch start, long seed){
+			this.start = start;
+			this.seed = seed;
+		}
+
+		abstract void work(Random random);
+
+		@Override
+		public void run(){
+			try {
+				start.await();
+				work(new Random(seed));
+			} catch (Throwable e){
+				errors.add(e);
+			}
+		}
+	}
+}
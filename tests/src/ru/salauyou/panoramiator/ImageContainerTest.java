@@ -0,0 +1,116 @@
+package ru.salauyou.panoramiator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+import android.graphics.Bitmap;
+
+/**
+ * Checks cursor of image container when the image list is replaced
+ */
+public class ImageContainerTest extends TestCase {
+
+	private ImageContainer container;
+	private long budget;
+	private BitmapCache.Cursor cursorCache, cursorScheduler;
+	private Image.Listener listener;
+	
+	
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		BitmapCache.getInstance().clear();
+		budget = BitmapCache.getInstance().getBudget();
+		// container hooks itself into shared objects, which belong to the app
+		cursorCache = BitmapCache.getInstance().getCursor();
+		cursorScheduler = DownloadScheduler.getInstance().getCursor();
+		listener = Image.getListener();
+		container = new ImageContainer(null);
+	}
+	
+	
+	@Override
+	protected void tearDown() throws Exception {
+		BitmapCache.getInstance().setBudget(budget);
+		BitmapCache.getInstance().clear();
+		BitmapCache.getInstance().setCursor(cursorCache);
+		DownloadScheduler.getInstance().setCursor(cursorScheduler);
+		Image.setListener(listener);
+		super.tearDown();
+	}
+	
+	
+	public void testCurrentImageRemovedByMerge(){
+		Image a = getImageReady(50), b = getImageReady(40), c = getImageReady(30);
+		container.receiveImageList(new ArrayList<Image>(Arrays.asList(a, b, c)), 0);
+		assertSame(a, container.getImageCurrent());
+		Bitmap bitmapB = container.getBitmapNext();
+		assertSame(b.getBitmap(), bitmapB);
+		
+		// 'b' is dropped while displayed, 'd' arrives between 'a' and 'c' by date
+		Image d = getImageReady(35);
+		List<Image> received = new ArrayList<Image>(Arrays.asList(a.copy(), d, c.copy()));
+		container.receiveImageList(received, 0);
+		assertEquals(3, container.getQtyActual());
+		assertSame(b, container.getImageCurrent());
+		
+		// bitmap of dropped current image is kept as it is at cursor
+		assertEquals(0, container.getDistance(b));
+		BitmapCache.getInstance().setBudget(1);
+		assertTrue(b.isReady());
+		assertSame(bitmapB, b.getBitmap());
+		assertNotSame(bitmapB, BitmapPool.getInstance().get(bitmapB.getWidth(), bitmapB.getHeight(), bitmapB.getConfig(), 1));
+	}
+	
+	
+	public void testNextAfterCurrentImageRemovedByMerge(){
+		Image a = getImageReady(50), b = getImageReady(40), c = getImageReady(30);
+		container.receiveImageList(new ArrayList<Image>(Arrays.asList(a, b, c)), 0);
+		container.getImageCurrent();
+		container.getBitmapNext();
+		
+		Image d = getImageReady(35);
+		container.receiveImageList(new ArrayList<Image>(Arrays.asList(a.copy(), d, c.copy())), 0);
+		
+		// slideshow continues with the image which took place of the dropped one, then with the rest
+		assertSame(d.getBitmap(), container.getBitmapNext());
+		assertSame(d, container.getImageCurrent());
+		assertSame(c.getBitmap(), container.getBitmapNext());
+		assertSame(a.getBitmap(), container.getBitmapNext());
+		
+		// dropped image is not displayed anymore
+		assertEquals(Integer.MAX_VALUE, container.getDistance(b));
+	}
+	
+	
+	public void testDroppedImageReleasedWhenCursorLeaves(){
+		Image a = getImageReady(50), b = getImageReady(40), c = getImageReady(30);
+		container.receiveImageList(new ArrayList<Image>(Arrays.asList(a, b, c)), 0);
+		container.getImageCurrent();
+		container.getBitmapNext();
+		
+		Image d = getImageReady(35);
+		container.receiveImageList(new ArrayList<Image>(Arrays.asList(a.copy(), d, c.copy())), 0);
+		assertTrue(b.isReady());
+		
+		// 'b' is still displayed as preceding image
+		container.getBitmapNext();
+		assertTrue(b.isReady());
+		
+		// cursor has left it
+		container.getBitmapNext();
+		assertFalse(b.isReady());
+		assertNull(b.getBitmap());
+	}
+	
+	
+	/* image with given upload time (in tenths of second) and decoded bitmap */
+	static private Image getImageReady(int time){
+		Image image = new Image(new Date(time * 100L), "http://localhost:1/" + time + ".jpg", "", "", "", 0, 0);
+		image.setBitmap(Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888));
+		return image;
+	}
+}
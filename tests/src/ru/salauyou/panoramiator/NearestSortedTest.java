@@ -0,0 +1,127 @@
+package ru.salauyou.panoramiator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import android.location.Location;
+import android.location.LocationManager;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks selection of nearest images against previous implementation, which sorted
+ * the whole list by {@link Location#distanceTo(Location)}.
+ * With {@code PRECISE} distance the output must be the same. With default ranking distance,
+ * which is {@code FAST}, only images whose old distances differ less than its error
+ * may be chosen in place of each other
+ */
+public class NearestSortedTest extends TestCase {
+
+	static private final double LONGITUDE = 27.56;
+	static private final double LATITUDE = 53.90;
+	static private final double FAST_ERROR = 0.006;		// relative error of FAST against PRECISE
+
+
+	public void testPreciseMatchesOldSort(){
+		Random random = new Random(1);
+		for (int round = 0; round < 500; round++){
+			List<Image> images = getImagesRandom(random);
+			int qty = random.nextInt(images.size() + 5);
+			List<Image> expected = getNearestSortedOld(new ArrayList<Image>(images), qty);
+			List<Image> actual = ImageListUpdater.getImagesNearestSorted(new ArrayList<Image>(images), LONGITUDE, LATITUDE, qty,
+					GeoDistance.Mode.PRECISE);
+			assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++){
+				assertSame("round " + round + ", position " + i, expected.get(i), actual.get(i));
+			}
+		}
+	}
+
+
+	public void testDefaultDiffersFromOldSortWithinError(){
+		Random random = new Random(2);
+		for (int round = 0; round < 500; round++){
+			List<Image> images = getImagesRandom(random);
+			int qty = random.nextInt(images.size() + 5);
+			List<Image> expected = getNearestSortedOld(new ArrayList<Image>(images), qty);
+			List<Image> actual = ImageListUpdater.getImagesNearestSorted(new ArrayList<Image>(images), LONGITUDE, LATITUDE, qty);
+			assertEquals(expected.size(), actual.size());
+
+			// no image left out may be nearer by old distance than a chosen one beyond the error
+			List<Image> left = new ArrayList<Image>(images);
+			left.removeAll(actual);
+			for (Image chosen : actual){
+				for (Image other : left){
+					assertTrue("round " + round + ", " + chosen.getUrl() + " chosen over " + other.getUrl(),
+							getDistanceOld(chosen) <= getDistanceOld(other) * (1 + FAST_ERROR));
+				}
+			}
+
+			// and the output is sorted by date as before
+			for (int i = 1; i < actual.size(); i++){
+				assertFalse(actual.get(i).getDate().after(actual.get(i - 1).getDate()));
+			}
+		}
+	}
+
+
+	public void testEqualDistancesKeepListOrder(){
+		List<Image> images = new ArrayList<Image>();
+		for (int i = 0; i < 5; i++){
+			images.add(new Image(new Date(0), "url" + i, "", "", "", LONGITUDE + 0.01, LATITUDE));
+		}
+		List<Image> actual = ImageListUpdater.getImagesNearestSorted(new ArrayList<Image>(images), LONGITUDE, LATITUDE, 3);
+		assertEquals(images.subList(0, 3), actual);
+		assertEquals(images.subList(0, 3), getNearestSortedOld(new ArrayList<Image>(images), 3));
+	}
+
+
+	/* few distinct locations and dates, so there are many ties */
+	static private List<Image> getImagesRandom(Random random){
+		int n = random.nextInt(60);
+		List<Image> images = new ArrayList<Image>();
+		for (int i = 0; i < n; i++){
+			images.add(new Image(new Date(random.nextInt(8) * 1000L), "url" + i, "", "", "",
+					LONGITUDE + (random.nextInt(21) - 10) * 0.001, LATITUDE + (random.nextInt(21) - 10) * 0.001));
+		}
+		return images;
+	}
+
+
+	/* previous implementation: if there are more than 'qty' images, stable sort by distance
+	 * from Location and take the first 'qty', then stable sort by date */
+	static private List<Image> getNearestSortedOld(List<Image> images, int qty){
+		if (images.size() > qty){
+			Collections.sort(images, new Comparator<Image>(){
+				@Override
+				public int compare(Image image1, Image image2){
+					double difference = getDistanceOld(image1) - getDistanceOld(image2);
+					return difference == 0 ? 0 : (difference > 0 ? 1 : -1);
+				}
+			});
+			images.subList(qty, images.size()).clear();
+		}
+		Collections.sort(images, new Comparator<Image>(){
+			@Override
+			public int compare(Image image1, Image image2){
+				return image2.getDate().compareTo(image1.getDate());
+			}
+		});
+		return images;
+	}
+
+
+	static private float getDistanceOld(Image image){
+		Location location = new Location(LocationManager.GPS_PROVIDER);
+		location.setLongitude(LONGITUDE);
+		location.setLatitude(LATITUDE);
+		Location locationImage = new Location(LocationManager.GPS_PROVIDER);
+		locationImage.setLongitude(image.getLongitude());
+		locationImage.setLatitude(image.getLatitude());
+		return location.distanceTo(locationImage);
+	}
+}
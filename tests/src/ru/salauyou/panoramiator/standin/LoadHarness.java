@@ -0,0 +1,238 @@
+package ru.salauyou.panoramiator.standin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ru.salauyou.panoramiator.ApiClient;
+import ru.salauyou.panoramiator.CompressedCache;
+import ru.salauyou.panoramiator.DiskCache;
+import ru.salauyou.panoramiator.Image;
+import ru.salauyou.panoramiator.ImageListUpdater;
+import ru.salauyou.panoramiator.PhotoIndex;
+import ru.salauyou.panoramiator.RadiusMemory;
+import ru.salauyou.panoramiator.TileCache;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * LoadHarness replays location trace against {@code StandInServer}: for every point it runs 
+ * {@code ImageListUpdater} search, then downloads the first image of the list. It reports 
+ * probes per search, time to first bitmap and total bytes sent by the server. 
+ * <p>
+ * Must run in application process, off the main thread. During replay, shared API client, 
+ * radius memory, photo index and tile cache of {@code ImageListUpdater} are replaced with fresh ones, 
+ * disk cache of photos is off and compressed cache is empty, so photos are always downloaded from the server. 
+ * They are restored after replay, search still running is cancelled and bitmaps of downloaded images are released.
+ */
+public class LoadHarness {
+
+	/**
+	 * Point of location trace
+	 */
+	static public class Point {
+		final public double longitude;
+		final public double latitude;
+		final public long pause;	// ms to wait before the point is replayed
+		
+		public Point(double longitude, double latitude, long pause){
+			this.longitude = longitude;
+			this.latitude = latitude;
+			this.pause = pause;
+		}
+	}
+	
+	/**
+	 * Results of replay
+	 */
+	static public class Report {
+		public int searches;
+		public int failures;			// searches returned no list or no bitmap within timeout
+		public long probes;
+		public long lists;
+		public long photos;
+		public long bytes;
+		public long photosIndexed;		// photos in the index of replay
+		public long timeToListTotal;	// ms, sum over successful searches
+		public long timeToBitmapTotal;	// ms, from search start, sum over successful searches
+		public long timeToBitmapMax;	// ms
+		public long connectionsOpened;
+		public long connectionsReused;
+		
+		public double getProbesPerSearch(){
+			return searches == 0 ? 0 : (double)probes / searches;
+		}
+		
+		public long getTimeToListAverage(){
+			return searches == failures ? 0 : timeToListTotal / (searches - failures);
+		}
+		
+		public long getTimeToBitmapAverage(){
+			return searches == failures ? 0 : timeToBitmapTotal / (searches - failures);
+		}
+		
+		@Override
+		public String toString(){
+			return String.format(Locale.US, "searches: %d, failed: %d, probes per search: %.2f, lists: %d, photos: %d, indexed: %d, "
+					+ "time to list: %d ms, time to first bitmap: %d ms (max %d ms), bytes: %d, connections opened/reused: %d/%d", 
+					searches, failures, getProbesPerSearch(), lists, photos, photosIndexed, getTimeToListAverage(), 
+					getTimeToBitmapAverage(), timeToBitmapMax, bytes, connectionsOpened, connectionsReused);
+		}
+	}
+	
+	static public final long TIMEOUT_DEFAULT = 30000;	// ms
+	static private final long POLL_PERIOD = 10;			// ms
+	
+	final private StandInServer server;
+	final private int qty;
+	final private long timeout;
+	final private Handler handler = new Handler(Looper.getMainLooper());
+	
+	
+	/**
+	 * Create harness with default timeout
+	 * 
+	 * @param server	started stand-in server
+	 * @param qty		quantity of images to search for
+	 */
+	public LoadHarness(StandInServer server, int qty){
+		this(server, qty, TIMEOUT_DEFAULT);
+	}
+	
+	/**
+	 * Create harness
+	 * 
+	 * @param server	started stand-in server
+	 * @param qty		quantity of images to search for
+	 * @param timeout	time to wait for list and for bitmap, ms
+	 */
+	public LoadHarness(StandInServer server, int qty, long timeout){
+		this.server = server;
+		this.qty = qty;
+		this.timeout = timeout;
+	}
+	
+	
+	/**
+	 * Replay location trace point by point
+	 * 
+	 * @param trace
+	 * @return	report of the replay
+	 * @throws InterruptedException
+	 */
+	public Report replay(List<Point> trace) throws InterruptedException {
+		ApiClient clientApp = ImageListUpdater.getApiClient();
+		RadiusMemory memoryApp = ImageListUpdater.getRadiusMemory();
+		PhotoIndex indexApp = ImageListUpdater.getPhotoIndex();
+		TileCache tileCacheApp = ImageListUpdater.getTileCache();
+		DiskCache diskCacheApp = Image.getDiskCache();
+		CompressedCache compressedCacheApp = Image.getCompressedCache();
+		List<Image> downloaded = new ArrayList<Image>();
+		
+		ApiClient client = new ApiClient(server.getBaseUrl());
+		ImageListUpdater.setApiClient(client);
+		PhotoIndex index = new PhotoIndex();
+		ImageListUpdater.setRadiusMemory(new RadiusMemory());
+		ImageListUpdater.setPhotoIndex(index);
+		ImageListUpdater.setTileCache(new TileCache());
+		Image.setDiskCache(null);
+		Image.setCompressedCache(new CompressedCache(CompressedCache.SIZE_DEFAULT));
+		try {
+			Report report = replay(trace, client, downloaded);
+			report.photosIndexed = index.size();
+			return report;
+		} finally {
+			ImageListUpdater.cancelSearch();
+			for (Image image : downloaded){
+				image.release();
+			}
+			ImageListUpdater.setApiClient(clientApp);
+			ImageListUpdater.setRadiusMemory(memoryApp);
+			ImageListUpdater.setPhotoIndex(indexApp);
+			ImageListUpdater.setTileCache(tileCacheApp);
+			Image.setDiskCache(diskCacheApp);
+			Image.setCompressedCache(compressedCacheApp);
+		}
+	}
+	
+	
+	/* replay the trace with globals replaced, collecting images which download was started */
+	private Report replay(List<Point> trace, ApiClient client, List<Image> downloaded) throws InterruptedException {
+		server.resetCounters();
+		
+		Report report = new Report();
+		int id = 0;
+		for (Point point : trace){
+			if (point.pause > 0){
+				Thread.sleep(point.pause);
+			}
+			long probesBefore = server.getProbesServed();
+			long start = SystemClock.elapsedRealtime();
+			List<Image> images = search(point, ++id);
+			long timeToList = SystemClock.elapsedRealtime() - start;
+			report.searches++;
+			report.probes += server.getProbesServed() - probesBefore;
+			
+			if (images != null && !images.isEmpty()){
+				downloaded.add(images.get(0));
+			}
+			if (images == null || images.isEmpty() || !download(images.get(0))){
+				report.failures++;
+				Log.println(Log.DEBUG, "panoramiator", "Harness search failed at " + point.longitude + ", " + point.latitude);
+				continue;
+			}
+			long timeToBitmap = SystemClock.elapsedRealtime() - start;
+			report.timeToListTotal += timeToList;
+			report.timeToBitmapTotal += timeToBitmap;
+			report.timeToBitmapMax = Math.max(report.timeToBitmapMax, timeToBitmap);
+		}
+		
+		report.lists = server.getListsServed();
+		report.photos = server.getPhotosServed();
+		report.bytes = server.getBytesSent();
+		report.connectionsOpened = client.getConnectionsOpened();
+		report.connectionsReused = client.getConnectionsReused();
+		Log.println(Log.DEBUG, "panoramiator", "Harness report: " + report);
+		return report;
+	}
+	
+	
+	/* run search from the main thread, as ImageListUpdater returns the list to the thread it was called from */
+	private List<Image> search(final Point point, final int id) throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AtomicReference<List<Image>> result = new AtomicReference<List<Image>>();
+		final ImageListUpdater.Receiver receiver = new ImageListUpdater.Receiver(){
+			@Override
+			public void receiveImageList(List<Image> imagesReceived, int idReceived){
+				if (idReceived == id){
+					result.set(imagesReceived);
+					latch.countDown();
+				}
+			}
+		};
+		handler.post(new Runnable(){
+			@Override
+			public void run(){
+				new ImageListUpdater().getImagesPanoramio(receiver, id, point.longitude, point.latitude, qty);
+			}
+		});
+		latch.await(timeout, TimeUnit.MILLISECONDS);
+		return result.get();
+	}
+	
+	
+	/* download bitmap of the image, return if it is ready within timeout */
+	private boolean download(Image image) throws InterruptedException {
+		long deadline = SystemClock.elapsedRealtime() + timeout;
+		image.startDownload();
+		while (!image.isReady() && SystemClock.elapsedRealtime() < deadline){
+			Thread.sleep(POLL_PERIOD);
+		}
+		return image.isReady();
+	}
+}
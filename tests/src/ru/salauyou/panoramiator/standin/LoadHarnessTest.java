@@ -0,0 +1,81 @@
+package ru.salauyou.panoramiator.standin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import ru.salauyou.panoramiator.ApiClient;
+import ru.salauyou.panoramiator.CompressedCache;
+import ru.salauyou.panoramiator.DiskCache;
+import ru.salauyou.panoramiator.Image;
+import ru.salauyou.panoramiator.ImageListUpdater;
+import ru.salauyou.panoramiator.PhotoIndex;
+import ru.salauyou.panoramiator.RadiusMemory;
+import ru.salauyou.panoramiator.TileCache;
+
+/**
+ * Replays short trace through city of stand-in server and checks the report,
+ * and that shared objects of the app are restored afterwards
+ */
+public class LoadHarnessTest extends TestCase {
+
+	static private final double LONGITUDE = 27.56;
+	static private final double LATITUDE = 53.90;
+	static private final int QTY = 20;
+
+	private StandInServer server;
+
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		server = new StandInServer(new StandInServer.CityField(LONGITUDE, LATITUDE, 200, 3, 0.5))
+				.setLatency(20, 10)
+				.setPhotoSize(20 * 1024);
+		server.start();
+	}
+
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.stop();
+		super.tearDown();
+	}
+
+
+	public void testReplay() throws InterruptedException {
+		ApiClient clientApp = ImageListUpdater.getApiClient();
+		RadiusMemory memoryApp = ImageListUpdater.getRadiusMemory();
+		PhotoIndex indexApp = ImageListUpdater.getPhotoIndex();
+		int indexedApp = indexApp.size();
+		TileCache tileCacheApp = ImageListUpdater.getTileCache();
+		DiskCache diskCacheApp = Image.getDiskCache();
+		CompressedCache compressedCacheApp = Image.getCompressedCache();
+
+		// from the centre of the city to its outskirts, then back
+		List<LoadHarness.Point> trace = new ArrayList<LoadHarness.Point>();
+		for (int i = 0; i < 5; i++){
+			trace.add(new LoadHarness.Point(LONGITUDE + i * 0.01, LATITUDE, 0));
+		}
+		trace.add(new LoadHarness.Point(LONGITUDE, LATITUDE, 0));
+		LoadHarness.Report report = new LoadHarness(server, QTY).replay(trace);
+
+		assertEquals(trace.size(), report.searches);
+		assertEquals(0, report.failures);
+		assertTrue(report.probes > 0);
+		assertTrue(report.lists > 0);
+		// the first image of every search is downloaded from the server
+		assertTrue(report.photos > 0 && report.photos <= report.searches);
+		assertTrue(report.photosIndexed >= QTY);
+		assertTrue(report.bytes > 0);
+
+		// photos of stand-in server are not left in the app
+		assertSame(clientApp, ImageListUpdater.getApiClient());
+		assertSame(memoryApp, ImageListUpdater.getRadiusMemory());
+		assertSame(indexApp, ImageListUpdater.getPhotoIndex());
+		assertEquals(indexedApp, indexApp.size());
+		assertSame(tileCacheApp, ImageListUpdater.getTileCache());
+		assertSame(diskCacheApp, Image.getDiskCache());
+		assertSame(compressedCacheApp, Image.getCompressedCache());
+	}
+}
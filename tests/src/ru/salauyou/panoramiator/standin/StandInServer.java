@@ -0,0 +1,562 @@
+package ru.salauyou.panoramiator.standin;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StandInServer is an embedded HTTP server standing in for Panoramio. It serves 
+ * {@code get_panoramas.php}-compatible JSON of synthetic photos generated from density field, 
+ * and fake JPEG bytes for every photo. Latency, bandwidth and error rate can be injected.
+ * Photos are deterministic: the same box always returns the same photos.
+ * <p>
+ * Point the app at the server by {@code ImageListUpdater.setApiClient(new ApiClient(server.getBaseUrl()))}.
+ */
+public class StandInServer {
+
+	/**
+	 * Density of photos around the world
+	 */
+	public interface DensityField {
+		
+		/**
+		 * Get density of photos at given point
+		 * 
+		 * @return	photos per square km
+		 */
+		double getDensity(double longitude, double latitude);
+	}
+	
+	/**
+	 * Density field of a city: gaussian peak at the centre over constant background
+	 */
+	static public class CityField implements DensityField {
+		
+		final private double longitude, latitude, peak, radius, background;
+		
+		/**
+		 * @param longitude		centre of the city
+		 * @param latitude
+		 * @param peak			density at the centre, photos per square km
+		 * @param radius		distance at which density falls by e times, km
+		 * @param background	density far from the centre, photos per square km
+		 */
+		public CityField(double longitude, double latitude, double peak, double radius, double background){
+			this.longitude = longitude;
+			this.latitude = latitude;
+			this.peak = peak;
+			this.radius = radius;
+			this.background = background;
+		}
+		
+		@Override
+		public double getDensity(double longitude, double latitude){
+			double x = (longitude - this.longitude) * KM_PER_DEGREE * Math.cos(latitude / 180.0 * Math.PI);
+			double y = (latitude - this.latitude) * KM_PER_DEGREE;
+			return background + peak * Math.exp(-(x * x + y * y) / (radius * radius));
+		}
+	}
+	
+	/**
+	 * Synthetic photo
+	 */
+	static private class Photo {
+		long id;
+		double longitude, latitude, popularity;
+		long date;
+	}
+	
+	static private final double KM_PER_DEGREE = 111.195;
+	static private final double CELL_SIZE = 0.001;		// degrees, photos are generated per cell
+	static private final long CELLS_MAX = 4000000;		// boxes of more cells are treated as having more photos
+	static private final int CHUNK_SIZE = 4096;
+	static private final long DATE_FROM = 1104537600000L;	// 2005-01-01
+	static private final long DATE_RANGE = 9L * 365 * 24 * 3600 * 1000;
+	
+	// valid 8 x 8 grey JPEG, padded to needed size by comment segments after its APP0 segment 
+	static private final String JPEG_HEX = "ffd8ffe000104a46494600010200000100010000ffdb004300080606070605080707070909080a0c140d0c0b0b0c1912130f141d1a1f1e1d1a1c1c20242e2720222c231c1c2837292c30313434341f27393d38323c2e333432ffc0000b080008000801011100ffc4001f0000010501010101010100000000000000000102030405060708090a0bffc400b5100002010303020403050504040000017d01020300041105122131410613516107227114328191a1082342b1c11552d1f02433627282090a161718191a25262728292a3435363738393a434445464748494a535455565758595a636465666768696a737475767778797a838485868788898a92939495969798999aa2a3a4a5a6a7a8a9aab2b3b4b5b6b7b8b9bac2c3c4c5c6c7c8c9cad2d3d4d5d6d7d8d9dae1e2e3e4e5e6e7e8e9eaf1f2f3f4f5f6f7f8f9faffda0008010100003f00f9febfffd9";
+	static private final int JPEG_APP0_END = 20;
+	
+	final private DensityField field;
+	private volatile int latency = 0, latencyJitter = 0;	// ms
+	private volatile int bandwidth = 0;						// bytes per second per connection, 0 is unlimited
+	private volatile double errorRate = 0;
+	private volatile byte[] jpeg = getJpeg(100 * 1024);
+	
+	private ServerSocket serverSocket;
+	private ExecutorService connections;
+	final private Random random = new Random();
+	
+	final private AtomicLong probesServed = new AtomicLong();
+	final private AtomicLong listsServed = new AtomicLong();
+	final private AtomicLong photosServed = new AtomicLong();
+	final private AtomicLong errorsInjected = new AtomicLong();
+	final private AtomicLong bytesSent = new AtomicLong();
+	
+	
+	/**
+	 * Create server. It is not started until {@code start()}
+	 * 
+	 * @param field		density of photos
+	 * @throws NullPointerException
+	 */
+	public StandInServer(DensityField field) throws NullPointerException {
+		if (field == null)
+			throw new NullPointerException("Density field is null");
+		this.field = field;
+	}
+	
+	
+	/**
+	 * Set latency added before every response
+	 * 
+	 * @param latency	ms
+	 * @param jitter	maximum random addition to latency, ms
+	 * @return
+	 */
+	public StandInServer setLatency(int latency, int jitter){
+		this.latency = Math.max(0, latency);
+		this.latencyJitter = Math.max(0, jitter);
+		return this;
+	}
+	
+	
+	/**
+	 * Set bandwidth limit of every connection
+	 * 
+	 * @param bytesPerSecond	limit, if {@code <= 0}, bandwidth is unlimited
+	 * @return
+	 */
+	public StandInServer setBandwidth(int bytesPerSecond){
+		this.bandwidth = Math.max(0, bytesPerSecond);
+		return this;
+	}
+	
+	
+	/**
+	 * Set rate of failed requests. A half of failed requests is responded with status 500, 
+	 * the other half is dropped without response
+	 * 
+	 * @param rate	from 0 to 1
+	 * @return
+	 */
+	public StandInServer setErrorRate(double rate){
+		this.errorRate = Math.max(0, Math.min(1, rate));
+		return this;
+	}
+	
+	
+	/**
+	 * Set size of JPEG served for every photo
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public StandInServer setPhotoSize(int bytes){
+		this.jpeg = getJpeg(bytes);
+		return this;
+	}
+	
+	
+	/**
+	 * Start server on free local port
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		if (serverSocket != null){
+			return;
+		}
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		connections = Executors.newCachedThreadPool();
+		final ServerSocket socket = serverSocket;
+		final ExecutorService executor = connections;
+		Thread acceptor = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				try {
+					while (true){
+						final Socket s = socket.accept();
+						executor.execute(new Runnable(){
+							@Override
+							public void run(){
+								serve(s);
+							}
+						});
+					}
+				} catch (IOException e){
+					// server socket is closed
+				}
+			}
+		}, "Stand-in server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+	
+	
+	/**
+	 * Stop server and close all connections
+	 */
+	public synchronized void stop(){
+		if (serverSocket != null){
+			try {
+				serverSocket.close();
+			} catch (IOException e){
+				// nothing to do
+			}
+			connections.shutdownNow();
+			serverSocket = null;
+		}
+	}
+	
+	
+	/**
+	 * Get base URL of Panoramio API served
+	 * 
+	 * @return
+	 * @throws IllegalStateException	if server is not started
+	 */
+	public synchronized String getBaseUrl() throws IllegalStateException {
+		return getRootUrl() + "map/";
+	}
+	
+	
+	/**
+	 * Get quantity of 'has_more' probes served, i. e. requests with {@code from} equal to {@code to}
+	 */
+	public long getProbesServed(){
+		return probesServed.get();
+	}
+	
+	/**
+	 * Get quantity of photo lists served
+	 */
+	public long getListsServed(){
+		return listsServed.get();
+	}
+	
+	/**
+	 * Get quantity of photo JPEGs served
+	 */
+	public long getPhotosServed(){
+		return photosServed.get();
+	}
+	
+	/**
+	 * Get quantity of requests failed on purpose
+	 */
+	public long getErrorsInjected(){
+		return errorsInjected.get();
+	}
+	
+	/**
+	 * Get total quantity of bytes sent, including headers
+	 */
+	public long getBytesSent(){
+		return bytesSent.get();
+	}
+	
+	
+	/**
+	 * Reset all counters
+	 */
+	public void resetCounters(){
+		probesServed.set(0);
+		listsServed.set(0);
+		photosServed.set(0);
+		errorsInjected.set(0);
+		bytesSent.set(0);
+	}
+	
+	
+	
+	/* ===================== HTTP serving ====================== */
+	
+	private String getRootUrl() throws IllegalStateException {
+		if (serverSocket == null)
+			throw new IllegalStateException("Server is not started");
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+	}
+	
+	
+	/* serve requests of one kept-alive connection */
+	private void serve(Socket socket){
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			while (true){
+				String requestLine = readLine(in);
+				if (requestLine == null || requestLine.length() == 0){
+					break;
+				}
+				boolean keepAlive = requestLine.endsWith("HTTP/1.1");
+				String header;
+				while ((header = readLine(in)) != null && header.length() > 0){
+					if (header.toLowerCase(Locale.US).startsWith("connection:")){
+						keepAlive = header.toLowerCase(Locale.US).contains("keep-alive");
+					}
+				}
+				
+				sleep(latency + (latencyJitter > 0 ? nextInt(latencyJitter) : 0));
+				if (nextDouble() < errorRate){
+					errorsInjected.incrementAndGet();
+					if (nextDouble() < 0.5){
+						break;	// drop connection
+					}
+					respond(out, 500, "text/plain", "Injected error".getBytes("UTF-8"), keepAlive);
+				} else {
+					String[] parts = requestLine.split(" ");
+					respond(out, parts.length > 1 ? parts[1] : "/", keepAlive);
+				}
+				if (!keepAlive){
+					break;
+				}
+			}
+		} catch (IOException e){
+			// connection is closed by client
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e){
+				// nothing to do
+			}
+		}
+	}
+	
+	
+	/* route request by path */
+	private void respond(OutputStream out, String target, boolean keepAlive) throws IOException {
+		int q = target.indexOf('?');
+		String path = q < 0 ? target : target.substring(0, q);
+		if (path.endsWith("/get_panoramas.php")){
+			Map<String, String> params = getParams(q < 0 ? "" : target.substring(q + 1));
+			try {
+				respond(out, 200, "application/json", getPanoramas(params).getBytes("UTF-8"), keepAlive);
+			} catch (NumberFormatException e){
+				respond(out, 400, "text/plain", "Bad parameters".getBytes("UTF-8"), keepAlive);
+			}
+		} else if (path.startsWith("/photos/")){
+			photosServed.incrementAndGet();
+			respond(out, 200, "image/jpeg", jpeg, keepAlive);
+		} else {
+			respond(out, 404, "text/plain", "Not found".getBytes("UTF-8"), keepAlive);
+		}
+	}
+	
+	
+	/* write response, throttling it to bandwidth */
+	private void respond(OutputStream out, int status, String contentType, byte[] body, boolean keepAlive) throws IOException {
+		String head = "HTTP/1.1 " + status + (status == 200 ? " OK" : " Error") + "\r\n"
+				+ "Content-Type: " + contentType + "\r\n"
+				+ "Content-Length: " + body.length + "\r\n"
+				+ "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n";
+		byte[] headBytes = head.getBytes("UTF-8");
+		out.write(headBytes);
+		bytesSent.addAndGet(headBytes.length);
+		long start = System.currentTimeMillis();
+		for (int offset = 0; offset < body.length; offset += CHUNK_SIZE){
+			int length = Math.min(CHUNK_SIZE, body.length - offset);
+			out.write(body, offset, length);
+			bytesSent.addAndGet(length);
+			int limit = bandwidth;
+			if (limit > 0){
+				// sleep until the moment these bytes are allowed to be sent
+				sleep((long)(offset + length) * 1000L / limit - (System.currentTimeMillis() - start));
+			}
+		}
+		out.flush();
+	}
+	
+	
+	
+	/* ===================== Photo generation ====================== */
+	
+	/* return JSON of photos within box, ordered by popularity */
+	private String getPanoramas(Map<String, String> params) throws NumberFormatException {
+		int from = Integer.parseInt(params.get("from"));
+		int to = Integer.parseInt(params.get("to"));
+		double minx = Double.parseDouble(params.get("minx"));
+		double miny = Double.parseDouble(params.get("miny"));
+		double maxx = Double.parseDouble(params.get("maxx"));
+		double maxy = Double.parseDouble(params.get("maxy"));
+		if (from == to){
+			probesServed.incrementAndGet();
+		} else {
+			listsServed.incrementAndGet();
+		}
+		
+		List<Photo> photos = new ArrayList<Photo>();
+		long cx0 = (long)Math.floor(minx / CELL_SIZE), cx1 = (long)Math.floor(maxx / CELL_SIZE);
+		long cy0 = (long)Math.floor(miny / CELL_SIZE), cy1 = (long)Math.floor(maxy / CELL_SIZE);
+		boolean tooLarge = (cx1 - cx0 + 1) * (cy1 - cy0 + 1) > CELLS_MAX;
+		if (!tooLarge){
+			for (long cx = cx0; cx <= cx1; cx++){
+				for (long cy = cy0; cy <= cy1; cy++){
+					addPhotos(cx, cy, minx, miny, maxx, maxy, photos);
+				}
+			}
+			Collections.sort(photos, new Comparator<Photo>(){
+				@Override
+				public int compare(Photo p1, Photo p2){
+					return Double.compare(p2.popularity, p1.popularity);
+				}
+			});
+		}
+		
+		SimpleDateFormat dateFormat = new SimpleDateFormat("dd MMMM yyyy", Locale.US);
+		String root = getRootUrl();
+		StringBuilder json = new StringBuilder();
+		json.append("{\"count\":").append(photos.size())
+			.append(",\"photos\":[");
+		for (int i = from; i < Math.min(to, photos.size()); i++){
+			Photo p = photos.get(i);
+			if (i > from){
+				json.append(',');
+			}
+			json.append("{\"photo_id\":").append(p.id)
+				.append(",\"photo_title\":\"Photo ").append(p.id).append('"')
+				.append(",\"photo_url\":\"").append(root).append("photo/").append(p.id).append('"')
+				.append(",\"photo_file_url\":\"").append(root).append("photos/medium/").append(p.id).append(".jpg\"")
+				.append(",\"longitude\":").append(p.longitude)
+				.append(",\"latitude\":").append(p.latitude)
+				.append(",\"width\":500,\"height\":375")
+				.append(",\"upload_date\":\"").append(dateFormat.format(new Date(p.date))).append('"')
+				.append(",\"owner_id\":").append(p.id % 1000)
+				.append(",\"owner_name\":\"User ").append(p.id % 1000).append('"')
+				.append(",\"owner_url\":\"").append(root).append("user/").append(p.id % 1000).append("\"}");
+		}
+		// fields go in the same order as Panoramio sends them, 'has_more' after photos
+		json.append("],\"has_more\":").append(tooLarge || photos.size() > to)
+			.append(",\"map_location\":{\"lat\":").append((miny + maxy) / 2)
+			.append(",\"lon\":").append((minx + maxx) / 2).append(",\"panoramio_zoom\":1}}");
+		return json.toString();
+	}
+	
+	
+	/* add photos of the cell that lie within box */
+	private void addPhotos(long cx, long cy, double minx, double miny, double maxx, double maxy, List<Photo> photos){
+		double x0 = cx * CELL_SIZE, y0 = cy * CELL_SIZE;
+		double areaKm = CELL_SIZE * KM_PER_DEGREE * CELL_SIZE * KM_PER_DEGREE * Math.cos(y0 / 180.0 * Math.PI);
+		double expected = field.getDensity(x0 + CELL_SIZE / 2, y0 + CELL_SIZE / 2) * areaKm;
+		
+		// the same cell always gets the same photos
+		Random cellRandom = new Random(cx * 2654435761L ^ cy * 40503L ^ 0x5DEECE66DL);
+		int qty = (int)Math.floor(expected) + (cellRandom.nextDouble() < expected - Math.floor(expected) ? 1 : 0);
+		for (int i = 0; i < qty; i++){
+			Photo p = new Photo();
+			p.longitude = x0 + cellRandom.nextDouble() * CELL_SIZE;
+			p.latitude = y0 + cellRandom.nextDouble() * CELL_SIZE;
+			p.popularity = cellRandom.nextDouble();
+			p.date = DATE_FROM + (long)(cellRandom.nextDouble() * DATE_RANGE);
+			p.id = Math.abs(cellRandom.nextLong() % 1000000000000L);
+			if (p.longitude >= minx && p.longitude <= maxx && p.latitude >= miny && p.latitude <= maxy){
+				photos.add(p);
+			}
+		}
+	}
+	
+	
+	/* return valid JPEG of given size */
+	static private byte[] getJpeg(int size){
+		byte[] base = new byte[JPEG_HEX.length() / 2];
+		for (int i = 0; i < base.length; i++){
+			base[i] = (byte)Integer.parseInt(JPEG_HEX.substring(i * 2, i * 2 + 2), 16);
+		}
+		// comment segment takes at least 4 bytes: marker and 2 bytes of length
+		int padding = Math.max(0, size - base.length);
+		if (padding > 0 && padding < 4){
+			padding = 4;
+		}
+		byte[] jpeg = new byte[base.length + padding];
+		System.arraycopy(base, 0, jpeg, 0, JPEG_APP0_END);
+		int offset = JPEG_APP0_END;
+		while (padding > 0){
+			int length = Math.min(65535, padding);
+			if (padding - length > 0 && padding - length < 4){
+				length -= 4;
+			}
+			jpeg[offset] = (byte)0xFF;
+			jpeg[offset + 1] = (byte)0xFE;
+			jpeg[offset + 2] = (byte)((length - 2) >> 8);
+			jpeg[offset + 3] = (byte)(length - 2);
+			offset += length;
+			padding -= length;
+		}
+		System.arraycopy(base, JPEG_APP0_END, jpeg, offset, base.length - JPEG_APP0_END);
+		return jpeg;
+	}
+	
+	
+	static private Map<String, String> getParams(String query){
+		Map<String, String> params = new HashMap<String, String>();
+		for (String pair : query.split("&")){
+			int e = pair.indexOf('=');
+			if (e > 0){
+				try {
+					params.put(pair.substring(0, e), URLDecoder.decode(pair.substring(e + 1), "UTF-8"));
+				} catch (IOException ex){
+					// UTF-8 is always supported
+				}
+			}
+		}
+		return params;
+	}
+	
+	
+	/* read line ending with CRLF, return null at end of stream */
+	static private String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) >= 0){
+			if (c == '\n'){
+				int length = line.length();
+				return (length > 0 && line.charAt(length - 1) == '\r') ? line.substring(0, length - 1) : line.toString();
+			}
+			line.append((char)c);
+		}
+		return line.length() > 0 ? line.toString() : null;
+	}
+	
+	
+	static private void sleep(long ms){
+		if (ms > 0){
+			try {
+				Thread.sleep(ms);
+			} catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	
+	private int nextInt(int n){
+		synchronized (random){
+			return random.nextInt(n);
+		}
+	}
+	
+	
+	private double nextDouble(){
+		synchronized (random){
+			return random.nextDouble();
+		}
+	}
+}